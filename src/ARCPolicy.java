@@ -0,0 +1,84 @@
+/**
+ * ARC (Megiddo and Modha): splits the cache between nodes used once (T1)
+ * and nodes used more than once (T2), and remembers the offsets recently
+ * evicted from each (B1 and B2). A miss on a remembered offset shifts the
+ * target size of T1 toward whichever list would have kept it, so the
+ * balance between recency and frequency adapts to the workload.
+ */
+public class ARCPolicy implements CachePolicy {
+
+    private EntryList t1 = new EntryList(); //nodes used once, LRU
+    private EntryList t2 = new EntryList(); //nodes used more than once, LRU
+    private GhostList b1; //offsets evicted from t1, oldest first
+    private GhostList b2; //offsets evicted from t2, oldest first
+    private int c; //number of nodes the cache holds
+    private int p; //target size of t1
+    private boolean lastInB2; //true if the most recent admission was remembered in b2
+
+    /**
+     * Constructor
+     * @param size --number of nodes the cache holds (int)
+     */
+    public ARCPolicy(int size) {
+        c = Math.max(1, size);
+        p = 0;
+        b1 = new GhostList(c);
+        b2 = new GhostList(c);
+    }
+
+    public String getName() {
+        return "arc";
+    }
+
+    public void admit(CacheEntry entry) {
+        long offset = entry.getOffset();
+        lastInB2 = false;
+        if (b1.contains(offset)) {
+            //would have been a hit with a larger t1
+            p = Math.min(c, p + Math.max(b2.size() / b1.size(), 1));
+            b1.remove(offset);
+            t2.addFirst(entry);
+        }
+        else if (b2.contains(offset)) {
+            //would have been a hit with a larger t2
+            p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+            b2.remove(offset);
+            lastInB2 = true;
+            t2.addFirst(entry);
+        }
+        else {
+            //keep the ghost lists within their bounds: |t1| + |b1| <= c, total <= 2c
+            if (t1.size() + b1.size() >= c && b1.size() > 0) {
+                b1.removeOldest();
+            }
+            else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * c && b2.size() > 0) {
+                b2.removeOldest();
+            }
+            t1.addFirst(entry);
+        }
+    }
+
+    public void access(CacheEntry entry) {
+        if (entry.list == t1) {
+            t1.remove(entry);
+            t2.addFirst(entry);
+        }
+        else if (entry.list == t2) {
+            t2.moveToFront(entry);
+        }
+    }
+
+    public CacheEntry evict() {
+        CacheEntry victim;
+        if (t1.size() > 0 && (t1.size() > p || (lastInB2 && t1.size() == p) || t2.size() == 0)) {
+            victim = t1.removeLast();
+            b1.add(victim.getOffset());
+        }
+        else {
+            victim = t2.removeLast();
+            b2.add(victim.getOffset());
+        }
+        return victim;
+    }
+
+}
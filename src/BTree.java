@@ -1,11 +1,28 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class BTree {
 
+    private static final int SCAN_BYTES = 1 << 20; //size of the reads scanNodes makes
+
     private BTreeNode root; //root node
     private int t; //degree
     RandomAccessFile file; //file to store tree inside
     Cache cache; //cache to store BTreeNodes in
+    private BufferPool pool; //off-heap pool of encoded nodes, below the cache (null if not used)
+    private boolean subtreeSums; //true if nodes store the total frequency under each child
+    private long nextOffset; //end of file -- where the next new node will be placed
+    private ArrayList<BTreeNode> touched; //nodes read or created by the insert in progress
+    private LongIntHashMap pinned; //offset of each pinned node -> its index in pinnedNodes
+    private ArrayList<BTreeNode> pinnedNodes; //upper levels of the tree, kept in memory and never evicted
+    private BTreeNode runLeaf; //leaf the last insertSorted key went into, null if no run is in progress
+    private long runLast; //last key insertSorted added
+    private long runHigh; //smallest key above runLeaf in the tree (Long.MAX_VALUE if none)
+    private ArrayList<BTreeNode> runPath; //nodes from the root down to runLeaf's parent
+    private int runChildren[]; //runChildren[d] is the child of runPath.get(d) that leads to runLeaf
 
     /**
      * Constructor
@@ -19,29 +36,194 @@ public class BTree {
         this.root = root;
         this.file = file;
         this.cache = cache;
+        touched = new ArrayList<BTreeNode>();
+        pinned = new LongIntHashMap(16);
+        pinnedNodes = new ArrayList<BTreeNode>();
+        runPath = new ArrayList<BTreeNode>();
+        runChildren = new int[16];
+        try {
+            nextOffset = file.length();
+        } catch (IOException e){
+            System.err.println(e.getMessage());
+            nextOffset = 0;
+        }
     }
 
     /**
-     * Create a new (empty) BTreeNode and write it to the file
+     * Read and write nodes through an off-heap buffer pool
+     * Must be set before any node is read or created
+     * @param pool --buffer pool for this tree's file
+     */
+    public void setBufferPool(BufferPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * Keep the total frequency under each child in every node, so range
+     * totals can be read off whole subtrees. The root given to the
+     * constructor must have been made with subtree sums too.
+     * Must be set before any node is read or created
+     * @param subtreeSums (boolean)
+     */
+    public void setSubtreeSums(boolean subtreeSums){
+        this.subtreeSums = subtreeSums;
+    }
+
+    /**
+     * Create a new (empty) BTreeNode at the end of the file
+     * The node isn't written until it is flushed or evicted from the cache
      * @return new node
      */
     public BTreeNode createBTreeNode(){
-        long offset;
-        try {
-            offset = file.length();
-        } catch (IOException e){
-            System.out.println(e.getMessage());
-            return null;    //if we can't place new node at the correct offset, don't create one.
+        BTreeNode node = new BTreeNode(t, nextOffset, file, pool, subtreeSums);
+        nextOffset += node.size();
+        node.markDirty();
+        touched.add(node);
+        return node;
+    }
+
+    /**
+     * Get the node stored at an offset.
+     * A node that is already in memory (the root, a pinned node, a node used
+     * by the current insert, or a cached node) is returned instead of being
+     * read again, so there is only ever one copy of a changed node.
+     * @param offset --offset of node within BTree file (long)
+     * @return node at offset
+     * @throws IOException if node has to be read and can't be
+     */
+    BTreeNode getNode(long offset) throws IOException {
+        if (root != null && root.getOffset() == offset){
+            return root;
         }
-        BTreeNode node = new BTreeNode(t, offset, file, cache);
-        try {
-            node.writeNode();
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+        int pin = pinned.get(offset, -1);
+        if (pin != -1){
+            return pinnedNodes.get(pin);
+        }
+        for (BTreeNode node : touched){
+            if (node.getOffset() == offset){
+                return node;
+            }
+        }
+        if (cache != null){
+            BTreeNode node = cache.getNode(offset);
+            if (node != null){
+                return node;
+            }
+        }
+        BTreeNode node = new BTreeNode(t, offset, file, pool, subtreeSums);
+        node.readNode(offset);
+        return node;
+    }
+
+    /**
+     * Keep the top levels of the tree in memory, so that a search only
+     * reads the levels below them. Pinned nodes are never evicted.
+     * Only whole levels are pinned: a level that would go over the memory
+     * budget isn't read at all.
+     * @param levels --number of levels to pin, counting the root as one (0 for no limit)
+     * @param maxBytes --memory budget in bytes, estimated from the node size (0 for no limit)
+     * @return number of levels pinned
+     * @throws IOException if a node can't be read
+     */
+    public int pinLevels(int levels, long maxBytes) throws IOException {
+        pinned.clear();
+        pinnedNodes.clear();
+        if (root == null){
+            return 0;
+        }
+        ArrayList<Long> level = new ArrayList<Long>(); //offsets of the nodes in the next level to pin
+        level.add(root.getOffset());
+        int depth = 0;
+        long bytes = 0;
+        while (!level.isEmpty() && (levels <= 0 || depth < levels)){
+            long levelBytes = (long) level.size() * BTreeNode.nodeSize(t, subtreeSums);
+            if (maxBytes > 0 && bytes + levelBytes > maxBytes){
+                break;
+            }
+            ArrayList<Long> next = new ArrayList<Long>();
+            for (long offset : level){
+                BTreeNode node = getNode(offset);
+                pinned.put(offset, pinnedNodes.size());
+                pinnedNodes.add(node);
+                if (!node.isLeaf()){
+                    for (int i = 0; i <= node.getNumKeys(); i++){
+                        next.add(node.children[i]);
+                    }
+                }
+            }
+            bytes += levelBytes;
+            depth++;
+            level = next;
+        }
+        return depth;
+    }
+
+    /**
+     * @return number of nodes currently pinned in memory
+     */
+    public int getPinnedCount(){
+        return pinnedNodes.size();
+    }
+
+    /**
+     * Get the node stored at an offset, and remember it as part of the
+     * insert in progress so it is written back when the insert finishes
+     * @param offset --offset of node within BTree file (long)
+     * @return node at offset
+     * @throws IOException if node has to be read and can't be
+     */
+    private BTreeNode touchNode(long offset) throws IOException {
+        BTreeNode node = getNode(offset);
+        if (!touched.contains(node)){
+            touched.add(node);
         }
         return node;
     }
 
+    /**
+     * Hand the nodes used by the insert that just finished over to the cache,
+     * which writes them back when they are evicted.
+     * Without a cache, changed nodes are written right away.
+     * Either way each node is written at most once per insert, or once per
+     * run of insertSorted, which this ends.
+     * @throws IOException if a node can't be written
+     */
+    private void finishInsert() throws IOException {
+        for (BTreeNode node : touched){
+            if (cache != null){
+                cache.addObject(node);
+            }
+            else if (node.isDirty()){
+                node.writeNode();
+            }
+        }
+        touched.clear();
+        runLeaf = null;
+    }
+
+    /**
+     * Write every node that has changed but not yet been written to the file.
+     * Must be called once the tree is finished, before it is read from disk.
+     * @throws IOException if a node can't be written
+     */
+    public void flush() throws IOException {
+        finishInsert();
+        if (cache != null){
+            cache.flush();
+        }
+        for (BTreeNode node : pinnedNodes){
+            if (node.isDirty()){
+                node.writeNode();
+            }
+        }
+        if (root != null && root.isDirty()){
+            root.writeNode();
+        }
+        if (pool != null){
+            pool.flush();
+        }
+    }
+
     /**
      * Search the BTree for a given sequence
      * @param sequence -- to search for (long)
@@ -56,41 +238,219 @@ public class BTree {
                 return frequency;
             }//otherwise, need to search entire BTree
         }
-        if (node == null){
-            //subtree is empty
-            return 0;
+        while (node != null){
+            int i = node.findKey(sequence);
+            if (i >= 0){
+                //found
+                return node.frequencies[i];
+            }
+            i = -(i + 1);   //child to continue in
+
+            if (node.children[i] == -1){
+                return 0;   //no more children to search, this element isn't here.
+            }
+            try {
+                long offset = node.children[i];
+                node = getNode(offset);
+                if (cache != null && pinned.get(offset, -1) == -1){
+                    cache.addObject(node); //keep the path cached so the next search can skip the disk
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return 0;
+            }
         }
-        int i = 0;
-        while (i < node.getNumKeys() && node.keys[i].getKey() < sequence){
-            i++;
+        //subtree is empty
+        return 0;
+    }
+
+    /**
+     * Search the BTree for many sequences at once, in one descent: each node
+     * on the way to any of the sequences is read once, and the sequences are
+     * split between its children by comparing them with its keys in order.
+     * @param keys --sequences to search for, in increasing order without repeats (long[])
+     * @param frequencies --filled with the frequency of each sequence, 0 if it isn't in the tree (int[])
+     * @throws IOException if a node can't be read
+     */
+    public void searchBatch(long keys[], int frequencies[]) throws IOException {
+        if (root != null){
+            searchBatch(keys, 0, keys.length, root, frequencies);
         }
-        if (i == node.getNumKeys()){
-            //key is greater than all that are stored in this node
-            if (node.isLeaf()){
-                return 0;
+    }
+
+    /**
+     * Helper method for searchBatch
+     * @param keys --sequences to search for, in increasing order (long[])
+     * @param from --first sequence to search for in this subtree (int)
+     * @param to --sequence after the last one to search for in this subtree (int)
+     * @param node --root of subtree
+     * @param frequencies --filled with the frequency of each sequence (int[])
+     * @throws IOException if a node can't be read
+     */
+    private void searchBatch(long keys[], int from, int to, BTreeNode node, int frequencies[]) throws IOException {
+        int n = (int) node.getNumKeys();
+        int q = from;   //next sequence to place
+        for (int i = 0; i <= n && q < to; i++){
+            //sequences smaller than key i (or every one left, after the last key) belong to child i
+            int end = q;
+            if (i < n){
+                while (end < to && keys[end] < node.keys[i]){
+                    end++;
+                }
+            }
+            else {
+                end = to;
+            }
+            if (end > q && !node.isLeaf()){
+                searchBatch(keys, q, end, getNode(node.children[i]), frequencies);
+            }
+            q = end;
+            if (i < n && q < to && keys[q] == node.keys[i]){
+                frequencies[q++] = node.frequencies[i];  //found
             }
         }
-        else if (node.keys[i].getKey() == sequence){
-            //found
-            //if cache is being used, this node needs to be added
-            if (cache != null){
-                cache.addObject(node);
+    }
+
+    /**
+     * Visit every key from low to high, in increasing order. The tree is
+     * descended once to the first key that isn't below low, then walked in
+     * order until a key above high is reached, so only nodes holding keys in
+     * the range (and the path to them) are read.
+     * @param low --smallest key to visit (long)
+     * @param high --largest key to visit (long)
+     * @param visitor --receives each key and its frequency
+     * @throws IOException if a node can't be read
+     */
+    public void scan(long low, long high, KeyVisitor visitor) throws IOException {
+        if (root != null && low <= high){
+            scan(low, high, root, visitor);
+        }
+    }
+
+    /**
+     * Helper method for scan
+     * @param low --smallest key to visit (long)
+     * @param high --largest key to visit (long)
+     * @param node --root of subtree
+     * @param visitor --receives each key and its frequency
+     * @return false once a key above high has been seen, so the scan can stop
+     * @throws IOException if a node can't be read
+     */
+    private boolean scan(long low, long high, BTreeNode node, KeyVisitor visitor) throws IOException {
+        int n = (int) node.getNumKeys();
+        int first = node.findKey(low);
+        boolean found = first >= 0;
+        if (!found){
+            first = -(first + 1);
+        }
+        for (int i = first; i <= n; i++){
+            //child i holds the keys between key i-1 and key i; if key i is low, they're all below it
+            if (!node.isLeaf() && !(found && i == first)){
+                if (!scan(low, high, getNode(node.children[i]), visitor)){
+                    return false;
+                }
+            }
+            if (i == n){
+                break;
+            }
+            if (node.keys[i] > high){
+                return false;
             }
-            return node.keys[i].getFrequency();
+            visitor.visit(node.keys[i], node.frequencies[i]);
         }
+        return true;
+    }
 
-        if (node.children[i] == -1){
-            return 0;   //no more children to search, this element isn't here.
+    /**
+     * Visit every key stored in a BTree file, in the order the nodes lie in
+     * the file rather than in key order. Every node in the file belongs to
+     * the tree, so the file is read front to back in large sequential reads
+     * instead of being walked from the root.
+     * @param file --file BTree is stored in
+     * @param t --degree of BTree (int)
+     * @param subtreeSums --true if nodes store the total frequency under each child (boolean)
+     * @param visitor --receives each key and its frequency
+     * @throws IOException if the file can't be read
+     */
+    public static void scanNodes(RandomAccessFile file, int t, boolean subtreeSums, KeyVisitor visitor) throws IOException {
+        int size = BTreeNode.nodeSize(t, subtreeSums);
+        ByteBuffer buffer = ByteBuffer.allocate(size * Math.max(1, SCAN_BYTES / size));
+        FileChannel channel = file.getChannel();
+        long position = 0;
+        while (true){
+            buffer.clear();
+            while (buffer.hasRemaining()){
+                if (channel.read(buffer, position + buffer.position()) < 0){
+                    break;  //end of file
+                }
+            }
+            int nodes = buffer.position() / size;
+            if (nodes == 0){
+                return;
+            }
+            for (int base = 0; base < nodes * size; base += size){
+                int n = (int) buffer.getLong(base + 8);
+                for (int i = 0; i < n; i++){
+                    int key = base + BTreeNode.keyPosition(t, i);
+                    visitor.visit(buffer.getLong(key), buffer.getInt(key + 8));
+                }
+            }
+            position += (long) nodes * size;
         }
-        BTreeNode child = null;
-        try {
-            //read node's largest child
-            child = new BTreeNode(t, node.children[i], file, cache);
-            child.readNode(node.children[i]);
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+    }
+
+    /**
+     * Total frequency of every key from low to high. With subtree sums, a
+     * child whose keys all lie in the range is counted from its parent's sum
+     * without being read, so only the nodes on the paths to the two ends of
+     * the range are read. Without them, every key in the range is visited.
+     * @param low --smallest key to count (long)
+     * @param high --largest key to count (long)
+     * @return sum of the frequencies of the keys in the range
+     * @throws IOException if a node can't be read
+     */
+    public long sum(long low, long high) throws IOException {
+        if (root == null || low > high){
+            return 0;
+        }
+        if (!subtreeSums){
+            long total[] = new long[1];
+            scan(low, high, (sequence, frequency) -> total[0] += frequency);
+            return total[0];
+        }
+        return sum(low, high, root, false, false);
+    }
+
+    /**
+     * Helper method for sum
+     * @param low --smallest key to count (long)
+     * @param high --largest key to count (long)
+     * @param node --root of subtree
+     * @param aboveLow --true if every key in the subtree is known to be at least low (boolean)
+     * @param belowHigh --true if every key in the subtree is known to be at most high (boolean)
+     * @return sum of the frequencies of the keys of the subtree in the range
+     * @throws IOException if a node can't be read
+     */
+    private long sum(long low, long high, BTreeNode node, boolean aboveLow, boolean belowHigh) throws IOException {
+        int n = (int) node.getNumKeys();
+        long total = 0;
+        for (int i = 0; i <= n; i++){
+            //child i holds the keys between key i-1 and key i
+            if (!node.isLeaf()){
+                boolean childAboveLow = (i == 0) ? aboveLow : node.keys[i-1] >= low;
+                boolean childBelowHigh = (i == n) ? belowHigh : node.keys[i] <= high;
+                if (childAboveLow && childBelowHigh){
+                    total += node.sums[i];
+                }
+                else if ((i == n || node.keys[i] > low) && (i == 0 || node.keys[i-1] < high)){
+                    total += sum(low, high, getNode(node.children[i]), childAboveLow, childBelowHigh);
+                }
+            }
+            if (i < n && node.keys[i] >= low && node.keys[i] <= high){
+                total += node.frequencies[i];
+            }
         }
-        return search(sequence, child);
+        return total;
     }
 
     /**
@@ -98,33 +458,104 @@ public class BTree {
      * location in the BTree and insert the key into that location.
      * It will also call splitChild and insertNonFull accordingly when
      * the BTree must split.
+     * Changed nodes are marked dirty rather than written immediately.
      * @param key
      */
     public void insert(long key){
+        insert(key, 1);
+    }
 
-        if (cache != null){
-            BTreeNode node = cache.getObject(key);
-                //if key is in cache, this call will have incremented frequency
-            if (cache.getObject(key) != null){
-                try {
-                    node.writeNode();       //write updated node and move it to front of cache
-                } catch (IOException e){
-                    System.err.println(e.getMessage());
+    /**
+     * Insert a key that occurred count times, as if insert(key) had been
+     * called count times, but walking the tree only once
+     * @param key
+     * @param count --number of occurrences of key (int)
+     */
+    public void insert(long key, int count){
+        try {
+            finishInsert();     //end any run of insertSorted first
+            if (!insertCached(key, count)){
+                insertKey(key, count);
+                finishInsert();
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Insert a key that occurred count times, like insert(key, count), for
+     * keys given in increasing order, as when merging a sorted batch.
+     * While keys fall between the previous key and the next key above its
+     * leaf, and fit in that leaf, they are added to it directly instead of
+     * walking down from the root. The leaf and the path to it stay in memory
+     * until the run ends, so each is written once per run rather than once
+     * per key. A key out of order is still inserted, just without the run.
+     * @param key
+     * @param count --number of occurrences of key (int)
+     */
+    public void insertSorted(long key, int count){
+        try {
+            if (runLeaf != null && key > runLast && key < runHigh && runLeaf.addKey(key, count) >= 0){
+                if (subtreeSums){
+                    for (int d = 0; d < runPath.size(); d++){
+                        BTreeNode node = runPath.get(d);
+                        node.sums[runChildren[d]] += count;
+                        node.markDirty();
+                    }
                 }
+                runLast = key;
                 return;
             }
+            //the key is outside the run's leaf, or would split it -- hand the run over and walk the tree
+            finishInsert();
+            if (!insertCached(key, count)){
+                insertKey(key, count);
+                startRun(key);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Count a key in a cached node without walking the tree, if it is in one
+     * @param key
+     * @param count --number of occurrences of key (int)
+     * @return true if the key was found in the cache and counted
+     */
+    private boolean insertCached(long key, int count){
+        //with subtree sums every node on the path must be counted, so the cache can't short-cut the walk
+        if (cache != null && !subtreeSums){
+            BTreeNode node = cache.getObject(key, count);
+                //if key is in cache, this call will have incremented frequency
+            if (node != null){
+                node.markDirty();   //getObject moved it to the front of the cache, it is written when evicted
+                return true;
+            }
         }
+        return false;
+    }
 
+    /**
+     * Walk the tree to insert a key, splitting full nodes on the way down.
+     * The nodes used are left in touched for the caller to finish.
+     * @param key
+     * @param count --number of occurrences of key (int)
+     * @throws IOException if a node can't be read
+     */
+    private void insertKey(long key, int count) throws IOException {
         //If the tree is empty
         if (root == null) {
             //Allocate a new node for the root
             root = createBTreeNode();
 
             //Add the key to be inserted
-            root.addKey(key);
+            root.addKey(key, count);
         }
         //The tree is not empty
         else {
+            touched.add(root);
             //If the root is full, then the tree grows in height
             if (root.getNumKeys() == ((2*t)-1) && !root.contains(key)) {
                 //Allocate memory for a new root
@@ -135,91 +566,82 @@ public class BTree {
 
                 //Split the old root into 2, and move middle key upwards
                 splitChild(0, root, newNode);
-
-                //Now it's time to actually add the new key into the child
-                try {
-                    root.readNode(newNode.getOffset());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                insertNonFull(key, newNode);
-
+                root = newNode;
             }
-            else {
-                insertNonFull(key, root);
+            insertNonFull(key, count, root);
+        }
+    }
 
+    /**
+     * Start a run of insertSorted at a key that was just inserted: find the
+     * leaf it went into, the path to it and the next key above the leaf.
+     * Every node on the path is still in touched, so nothing is read.
+     * @param key --key that was just inserted (long)
+     * @throws IOException if a node can't be read
+     */
+    private void startRun(long key) throws IOException {
+        runPath.clear();
+        runHigh = Long.MAX_VALUE;
+        BTreeNode node = root;
+        int i = node.findKey(key);
+        while (i < 0 && !node.isLeaf()){
+            i = -(i + 1);
+            if (i < node.getNumKeys()){
+                runHigh = node.keys[i];
             }
+            if (runPath.size() == runChildren.length){
+                runChildren = Arrays.copyOf(runChildren, 2 * runChildren.length);
+            }
+            runChildren[runPath.size()] = i;
+            runPath.add(node);
+            node = getNode(node.children[i]);
+            i = node.findKey(key);
         }
+        //a key that is stored in an internal node has no leaf to run in
+        runLeaf = node.isLeaf() ? node : null;
+        runLast = key;
     }
 
     /**
      * insertNonFull() is a helper method for insert().
      * It takes a key k and inserts it into a BTreeNode n.
-     * The assumption for this method is that n is nonfull
+     * The assumption for this method is that n is nonfull,
+     * or that n already contains k
      *
      * @param k key to be inserted
+     * @param count number of occurrences of k
      * @param n BTreeNode to be inserted into
+     * @throws IOException if a child can't be read
      */
-    public void insertNonFull(long k, BTreeNode n) {
+    public void insertNonFull(long k, int count, BTreeNode n) throws IOException {
 
-        boolean duplicate = false;
-        for (int i = 0; i < n.getNumKeys(); i++) {
-            if (n.keys[i].getKey() == k) {
-                duplicate = true;
-            }
+        int i = n.findKey(k);
+        if (i >= 0) {
+            //duplicate -- just count it
+            n.frequencies[i] += count;
+            n.markDirty();
+            return;
         }
-
-        if (n.isLeaf() || duplicate) {
-            n.addKey(k);
-
-            try {
-                n.writeNode();
-            } catch (Exception e) {
-                System.out.println(e);
-            }
+        if (n.isLeaf()) {
+            n.addKey(k, count);
+            return;
         }
-        else {
-            int i = 0;
-            while (i < n.getNumKeys() && n.keys[i].getKey() < k) {
-                i++;
-            }
+        i = -(i + 1);   //child k belongs in
 
-            //Overwrite n as the child to be inserted into
-            BTreeNode child = null;
-            try {
-                child = new BTreeNode(t, n.getOffset(), file, cache);
-                child.readNode(n.children[i]);
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-            }
-
-            duplicate = false;
-            int num = 0;
-            while (num < child.keys.length && child.keys[num] != null) {
-                if (child.keys[num].getKey() == k && duplicate == false) {
-                    duplicate = true;
-                }
-                num++;
-            }
-            if (child.getNumKeys() == ((2*t)-1) && !duplicate) {
-
-
-                splitChild(i, child, n);
-                i=0;
-                while (i < n.getNumKeys() && k > n.keys[i].getKey()) {
-                    i++;
-                }
-
-                try {
-                    child.readNode(n.children[i]);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        BTreeNode child = touchNode(n.children[i]);
+        if (child.getNumKeys() == ((2*t)-1) && !child.contains(k)) {
+            splitChild(i, child, n);
+            //the middle key of child moved up into n -- k belongs to its left or right
+            if (k > n.keys[i]) {
+                i++;
+                child = touchNode(n.children[i]);
             }
-            insertNonFull(k, child);
         }
-
-
+        if (subtreeSums) {
+            n.sums[i] += count;
+            n.markDirty();
+        }
+        insertNonFull(k, count, child);
     }
 
 
@@ -230,56 +652,43 @@ public class BTree {
      *
      * @param i index of split child (you will insert the new child at (i+1)
      * @param y child to be split
-     * @param p parent node of y (NOTE: y must be full)
+     * @param p parent node of y (NOTE: y must be full, p must not be)
      */
     public void splitChild(int i, BTreeNode y, BTreeNode p) {
         //One node is splitting into two, so we need a new node
         //The new node "z" will hold the keys to the right of the middle key
-        if (p.getNumKeys() == (2*t -1)) {
-            BTreeNode newP = createBTreeNode();
-            newP.children[0] = p.getOffset();
-            splitChild(0, p, newP);
-
-            root = new BTreeNode(t, newP.getOffset(), file, cache);
-            try {
-                root.readNode(newP.getOffset());
-                root.writeNode();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
         BTreeNode z = createBTreeNode();
 
-        //Copy the last (t-1) keys of y into z
-        for (int n = 0; n < t-1; n++) {
-            z.transferKey(y, t);
-        }
+        //Move the last (t-1) keys of y into z
+        System.arraycopy(y.keys, t, z.keys, 0, t-1);
+        System.arraycopy(y.frequencies, t, z.frequencies, 0, t-1);
+        z.setNumKeys(t-1);
 
         //If y (the node being split) has children, we need to give the last half to z
         if (!y.isLeaf()) {
-            for (int n = 0; n < t; n++) {
-                z.children[n] = y.children[n+t];
-                y.children[n+t] = -1;
+            System.arraycopy(y.children, t, z.children, 0, t);
+            Arrays.fill(y.children, t, 2*t, -1);
+            if (subtreeSums) {
+                System.arraycopy(y.sums, t, z.sums, 0, t);
+                Arrays.fill(y.sums, t, 2*t, 0);
             }
         }
 
         //Link the new child z to the parent p
-        if (p.children[i+1] != -1) {
-            for (int num = p.children.length-1; num > i+1; num--) {
-                p.children[num] = p.children[num - 1];
-            }
-        }
+        int numChildren = (int) p.getNumKeys() + 1;
+        System.arraycopy(p.children, i+1, p.children, i+2, numChildren - (i+1));
         p.children[i+1] = z.getOffset();
 
+        //Move the middle key of y up into p, leaving y with the first (t-1) keys
         p.transferKey(y, t-1);
+        y.setNumKeys(t-1);
 
-        try {
-            z.writeNode();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (subtreeSums) {
+            //the totals under y and z are recounted from what each now holds
+            System.arraycopy(p.sums, i+1, p.sums, i+2, numChildren - (i+1));
+            p.sums[i] = y.total();
+            p.sums[i+1] = z.total();
         }
-
     }
 
 
@@ -288,28 +697,28 @@ public class BTree {
      * Traverse the tree
      * Write all keys and their frequencies to a file
      * This traversal will print the nodes in order, by key
-     * @param dump --RandomAccessFile
-     * @param node --BTreeNode to begin traversal at (root of subtree)
-     * @param offset --offset starting node is at in BTree file (long)
+     * @param dump --PrintWriter
+     * @param parser --InputParser used to convert keys back to sequences
+     * @param offset --offset of node to begin traversal at (root of subtree) in BTree file (long)
      * @throws IOException if there is a problem writing to dump
      */
-    public void traverse(PrintWriter dump, InputParser parser, BTreeNode node, long offset) throws IOException {
+    public void traverse(PrintWriter dump, InputParser parser, long offset) throws IOException {
         if (offset < 0){
             return;
         }
 
-        node.readNode(offset);
+        BTreeNode node = getNode(offset);
 
         for (int i = 0; i < node.getNumKeys(); i++) {
 
             if (!node.isLeaf())
-                traverse(dump, parser, new BTreeNode(t, node.getOffset(), file, cache), node.children[i]);
+                traverse(dump, parser, node.children[i]);
 
-            dump.println(node.keys[i].getFrequency() + " " + parser.longToSequence(node.keys[i].getKey()));
+            dump.println(node.frequencies[i] + " " + parser.longToSequence(node.keys[i]));
         }
 
         if (!node.isLeaf())
-            traverse(dump, parser, new BTreeNode(t, node.getOffset(), file, cache), node.children[(int) node.getNumKeys()]);
+            traverse(dump, parser, node.children[(int) node.getNumKeys()]);
 
     }
 
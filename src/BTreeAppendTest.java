@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BTreeAppendTest {
+
+    private static final int KEYS = 5000; //keys are drawn from 0 to KEYS - 1
+    private static final int BATCH = 700; //distinct sequences merged per sorted batch
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("TESTING: BTree Append\n---------------------");
+        Random rand = new Random(18);
+        int failures = 0;
+        for (int degree : new int[] {2, 3, 16}) {
+            for (int cacheSize : new int[] {0, 20}) {
+                for (boolean subtreeSums : new boolean[] {false, true}) {
+                    failures += compare(degree, cacheSize, subtreeSums, rand);
+                }
+            }
+        }
+        System.out.println((failures == 0) ? "Done." : failures + " check(s) failed.");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Build a tree from a first input, reopen it from its metadata as
+     * GeneBankCreateBTree --append does, and merge a second input into it in
+     * sorted batches. Check that it ends up with the same keys and
+     * frequencies as a tree built from both inputs at once.
+     * @param degree --degree of both trees (int)
+     * @param cacheSize --size of the appended tree's cache, 0 for none (int)
+     * @param subtreeSums --true to keep subtree sums in both trees (boolean)
+     * @param rand --source of the sequences
+     * @return number of failed checks
+     * @throws IOException if a tree can't be written or read
+     */
+    private static int compare(int degree, int cacheSize, boolean subtreeSums, Random rand) throws IOException {
+        System.out.println("Degree " + degree + ((cacheSize > 0) ? ", cache " + cacheSize : "")
+                + (subtreeSums ? ", with subtree sums" : "") + "...");
+        long first[] = new long[8000];
+        long second[] = new long[12000];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = rand.nextInt(KEYS);
+        }
+        for (int i = 0; i < second.length; i++) {
+            second[i] = rand.nextInt(KEYS);
+        }
+        File appendFile = File.createTempFile("appendTest", ".btree");
+        File combinedFile = File.createTempFile("combinedTest", ".btree");
+        appendFile.deleteOnExit();
+        combinedFile.deleteOnExit();
+        new File(appendFile.getPath() + ".metadata").deleteOnExit();
+
+        /** BUILD THE EXISTING TREE FROM THE FIRST INPUT **/
+        try (RandomAccessFile data = new RandomAccessFile(appendFile, "rw")) {
+            BTree tree = new BTree(degree, data, null, null);
+            tree.setSubtreeSums(subtreeSums);
+            for (long key : first) {
+                tree.insert(key);
+            }
+            tree.flush();
+            new BTreeMetadata(tree.getRoot().getOffset(), degree, false, subtreeSums).write(appendFile.getPath());
+        }
+
+        int failures = 0;
+        try (RandomAccessFile appended = new RandomAccessFile(appendFile, "rw");
+             RandomAccessFile combined = new RandomAccessFile(combinedFile, "rw")) {
+
+            /** APPEND THE SECOND INPUT IN SORTED BATCHES **/
+            BTreeMetadata meta = BTreeMetadata.read(appendFile.getPath());
+            BTreeNode root = new BTreeNode(degree, meta.getRootOffset(), appended, null, subtreeSums);
+            root.readNode(meta.getRootOffset());
+            BTree tree = new BTree(degree, appended, root, (cacheSize > 0) ? new Cache<BTreeNode>(cacheSize) : null);
+            tree.setSubtreeSums(subtreeSums);
+            LongIntHashMap batch = new LongIntHashMap(BATCH);
+            for (long key : second) {
+                if (batch.size() >= BATCH && batch.get(key, 0) == 0) {
+                    insertBatch(tree, batch);
+                }
+                batch.add(key, 1);
+            }
+            insertBatch(tree, batch);
+            tree.flush();
+
+            /** BUILD A TREE FROM BOTH INPUTS AT ONCE **/
+            BTree expected = new BTree(degree, combined, null, null);
+            expected.setSubtreeSums(subtreeSums);
+            for (long key : first) {
+                expected.insert(key);
+            }
+            for (long key : second) {
+                expected.insert(key);
+            }
+            expected.flush();
+
+            /** COMPARE THEM **/
+            BTree reread = new BTree(degree, appended, tree.getRoot(), null);
+            reread.setSubtreeSums(subtreeSums);
+            ArrayList<long[]> got = contents(reread);
+            ArrayList<long[]> want = contents(expected);
+            if (got.size() != want.size()) {
+                System.out.println("FAILED: appended tree has " + got.size() + " keys, expected " + want.size());
+                failures++;
+            }
+            for (int i = 0; i < Math.min(got.size(), want.size()); i++) {
+                if (!Arrays.equals(got.get(i), want.get(i))) {
+                    System.out.println("FAILED: appended tree has " + got.get(i)[0] + " x" + got.get(i)[1]
+                            + " where expected " + want.get(i)[0] + " x" + want.get(i)[1]);
+                    failures++;
+                    break;
+                }
+            }
+            long total = reread.sum(0, Long.MAX_VALUE);
+            if (total != first.length + second.length) {
+                System.out.println("FAILED: appended tree totals " + total + ", expected " + (first.length + second.length));
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Merge a batch of counts into a tree in sorted order, and empty it
+     * @param tree --tree to merge into
+     * @param batch --sequence -> count
+     */
+    private static void insertBatch(BTree tree, LongIntHashMap batch) {
+        long keys[] = batch.keys();
+        Arrays.sort(keys);
+        for (long key : keys) {
+            tree.insertSorted(key, batch.get(key, 0));
+        }
+        batch.clear();
+    }
+
+    /**
+     * @param tree --tree to read
+     * @return every key of the tree and its frequency, in order
+     * @throws IOException if a node can't be read
+     */
+    private static ArrayList<long[]> contents(BTree tree) throws IOException {
+        ArrayList<long[]> keys = new ArrayList<long[]>();
+        tree.scan(0, Long.MAX_VALUE, (sequence, frequency) -> keys.add(new long[] {sequence, frequency}));
+        return keys;
+    }
+
+}
@@ -0,0 +1,89 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BTreeBulkLoadTest {
+
+    private static final int KEYS = 4000; //keys are drawn from 0 to KEYS - 1
+    private static final int INSERTS = 20000; //occurrences inserted into each tree
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("TESTING: BTree Bulk Load\n------------------------");
+        Random rand = new Random(11);
+        int failures = 0;
+        for (int degree : new int[] {2, 3, 7, 64}) {
+            for (boolean subtreeSums : new boolean[] {false, true}) {
+                failures += compare(degree, subtreeSums, rand);
+            }
+        }
+        System.out.println((failures == 0) ? "Done." : failures + " check(s) failed.");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Build one tree by insert and one by BTreeBulkLoader from the same
+     * sequences, and check that every key has the same frequency in both
+     * @param degree --degree of both trees (int)
+     * @param subtreeSums --true to keep subtree sums in both trees (boolean)
+     * @param rand --source of the sequences
+     * @return number of failed checks
+     * @throws IOException if a tree can't be written or read
+     */
+    private static int compare(int degree, boolean subtreeSums, Random rand) throws IOException {
+        System.out.println("Degree " + degree + (subtreeSums ? ", with subtree sums" : "") + "...");
+        File insertFile = File.createTempFile("insertTest", ".btree");
+        File bulkFile = File.createTempFile("bulkTest", ".btree");
+        insertFile.deleteOnExit();
+        bulkFile.deleteOnExit();
+        int failures = 0;
+        try (RandomAccessFile insertData = new RandomAccessFile(insertFile, "rw");
+             RandomAccessFile bulkData = new RandomAccessFile(bulkFile, "rw")) {
+
+            /** INSERT KEYS ONE AT A TIME **/
+            BTree inserted = new BTree(degree, insertData, null, new Cache<BTreeNode>(50));
+            inserted.setSubtreeSums(subtreeSums);
+            LongIntHashMap counts = new LongIntHashMap(KEYS);
+            long total = 0;
+            for (int i = 0; i < INSERTS; i++) {
+                long key = rand.nextInt(KEYS);
+                inserted.insert(key);
+                counts.add(key, 1);
+                total++;
+            }
+            inserted.flush();
+
+            /** BULK LOAD THE SAME COUNTS **/
+            long keys[] = counts.keys();
+            Arrays.sort(keys);
+            BTreeBulkLoader loader = new BTreeBulkLoader(degree, bulkData, keys.length, subtreeSums);
+            for (long key : keys) {
+                loader.add(key, counts.get(key, 0));
+            }
+            BTree loaded = new BTree(degree, bulkData, loader.finish(), null);
+            loaded.setSubtreeSums(subtreeSums);
+
+            /** COMPARE FREQUENCIES **/
+            for (long key = 0; key < KEYS; key++) {
+                long expected = counts.get(key, 0);
+                long fromInsert = inserted.search(key, inserted.getRoot());
+                long fromBulk = loaded.search(key, loaded.getRoot());
+                if (fromInsert != expected || fromBulk != expected) {
+                    System.out.println("FAILED: key " + key + " inserted " + fromInsert + ", bulk loaded " + fromBulk
+                            + ", expected " + expected);
+                    failures++;
+                }
+            }
+            long bulkTotal = loaded.sum(0, Long.MAX_VALUE);
+            if (bulkTotal != total) {
+                System.out.println("FAILED: bulk loaded tree totals " + bulkTotal + ", expected " + total);
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+}
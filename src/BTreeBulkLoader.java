@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Builds a BTree bottom-up from keys that are already sorted, instead of
+ * inserting them one at a time. Each node is filled and written exactly once,
+ * at increasing offsets, so building the tree is one sequential pass over
+ * the file. The nodes have the same layout as those BTree.insert() writes.
+ *
+ * The number of distinct keys must be known up front. It fixes how many nodes
+ * each level has and how many keys (or children) go in each, spreading them
+ * evenly so that every node but the root has at least t-1 keys and the
+ * result is a valid BTree that can still be inserted into.
+ *
+ * If subtree sums are kept, the total frequency under each node is added up
+ * as it is filled and stored in its parent next to the child's offset.
+ */
+public class BTreeBulkLoader {
+
+    private int t; //degree
+    private RandomAccessFile file; //file to write tree to
+    private long nextOffset; //where the next finished node is written
+
+    private int height; //number of levels, leaves are level 0
+    private long levelNodes[]; //number of nodes on each level
+    private long levelItems[]; //keys (leaves) or children (interior levels) spread over each level
+    private long nodeIndex[]; //index of the node currently being filled on each level
+    private int filled[]; //keys (leaves) or children (interior) in the node being filled on each level
+    private BTreeNode current[]; //node being filled on each level
+    private long totals[]; //total frequency under the node being filled on each level
+    private long closedTotal; //total frequency under the node close() last wrote
+    private boolean subtreeSums; //true if nodes store the total frequency under each child
+    private long added; //keys added so far
+    private long total; //keys that will be added
+
+    /**
+     * Constructor
+     * @param t --degree of BTree (int)
+     * @param file --file to write BTree into, nodes are placed after anything already in it
+     * @param total --number of distinct keys that will be added (long)
+     * @throws IOException if the file's length can't be read
+     */
+    public BTreeBulkLoader(int t, RandomAccessFile file, long total) throws IOException {
+        this(t, file, total, false);
+    }
+
+    /**
+     * Constructor
+     * @param t --degree of BTree (int)
+     * @param file --file to write BTree into, nodes are placed after anything already in it
+     * @param total --number of distinct keys that will be added (long)
+     * @param subtreeSums --true to store the total frequency under each child (boolean)
+     * @throws IOException if the file's length can't be read
+     */
+    public BTreeBulkLoader(int t, RandomAccessFile file, long total, boolean subtreeSums) throws IOException {
+        this.t = t;
+        this.subtreeSums = subtreeSums;
+        this.file = file;
+        this.total = total;
+        nextOffset = file.length();
+
+        //leaves hold up to 2t-1 keys and each leaf but the last is followed by a separator
+        long leaves = (total <= 2 * t - 1) ? 1 : (total + 1 + 2 * t - 1) / (2 * t);
+        height = 1;
+        for (long n = leaves; n > 1; n = (n + 2 * t - 1) / (2 * t)){
+            height++;
+        }
+        levelNodes = new long[height];
+        levelItems = new long[height];
+        levelNodes[0] = leaves;
+        levelItems[0] = total - (leaves - 1);
+        for (int level = 1; level < height; level++){
+            levelItems[level] = levelNodes[level - 1];
+            levelNodes[level] = (levelItems[level] + 2 * t - 1) / (2 * t);
+        }
+        nodeIndex = new long[height];
+        filled = new int[height];
+        current = new BTreeNode[height];
+        totals = new long[height];
+        for (int level = 0; level < height; level++){
+            current[level] = new BTreeNode(t, -1, file, null, subtreeSums);
+        }
+    }
+
+    /**
+     * Add the next key. Keys must be added in increasing order.
+     * @param key (long)
+     * @param frequency --number of times key appeared (int)
+     * @throws IOException if a finished node can't be written
+     */
+    public void add(long key, int frequency) throws IOException {
+        if (added == total){
+            throw new IllegalStateException("More keys added than the " + total + " expected");
+        }
+        added++;
+        if (filled[0] < quota(0)){
+            append(0, filled[0]++, key, frequency);
+            return;
+        }
+        //leaf is full -- key separates it from the next leaf
+        long leaf = close(0);
+        addSeparator(1, leaf, closedTotal, key, frequency);
+    }
+
+    /**
+     * Write the nodes that are still being filled
+     * @return root of the finished tree, or null if no keys were added
+     * @throws IOException if a node can't be written
+     */
+    public BTreeNode finish() throws IOException {
+        if (added != total){
+            throw new IllegalStateException("Only " + added + " of " + total + " keys were added");
+        }
+        if (total == 0){
+            return null;
+        }
+        long child = close(0);
+        for (int level = 1; level < height; level++){
+            addChild(level, child, closedTotal);
+            child = close(level);
+        }
+        BTreeNode root = new BTreeNode(t, child, file, null, subtreeSums);
+        root.readNode(child);
+        return root;
+    }
+
+    /**
+     * Number of keys (leaves) or children (interior) the node being filled on a level gets
+     * @param level (int)
+     * @return quota of current node
+     */
+    private int quota(int level){
+        long base = levelItems[level] / levelNodes[level];
+        long extra = levelItems[level] % levelNodes[level];
+        return (int) (base + ((nodeIndex[level] < extra) ? 1 : 0));
+    }
+
+    /**
+     * Pass a finished child and the key that follows it up to a level
+     * @param level --level the child's parent is on (int)
+     * @param child --offset of finished child (long)
+     * @param childTotal --total frequency under child (long)
+     * @param key --separator key after child (long)
+     * @param frequency --frequency of separator key (int)
+     * @throws IOException if a finished node can't be written
+     */
+    private void addSeparator(int level, long child, long childTotal, long key, int frequency) throws IOException {
+        addChild(level, child, childTotal);
+        if (filled[level] < quota(level)){
+            append(level, (int) current[level].getNumKeys(), key, frequency);
+            return;
+        }
+        //node has all its children -- key separates it from the next node on this level
+        long parent = close(level);
+        addSeparator(level + 1, parent, closedTotal, key, frequency);
+    }
+
+    /**
+     * @param level (int)
+     * @param child --offset of next child of the node being filled on level (long)
+     * @param childTotal --total frequency under child (long)
+     */
+    private void addChild(int level, long child, long childTotal){
+        if (subtreeSums){
+            current[level].sums[filled[level]] = childTotal;
+        }
+        current[level].children[filled[level]++] = child;
+        totals[level] += childTotal;
+    }
+
+    /**
+     * Put a key at the end of the node being filled on a level
+     * @param level (int)
+     * @param i --index of key (int)
+     * @param key (long)
+     * @param frequency (int)
+     */
+    private void append(int level, int i, long key, int frequency){
+        BTreeNode node = current[level];
+        node.keys[i] = key;
+        node.frequencies[i] = frequency;
+        node.setNumKeys(i + 1);
+        totals[level] += frequency;
+    }
+
+    /**
+     * Write the node being filled on a level and start the next one
+     * @param level (int)
+     * @return offset the node was written at
+     * @throws IOException if it can't be written
+     */
+    private long close(int level) throws IOException {
+        long offset = nextOffset;
+        nextOffset += BTreeNode.nodeSize(t, subtreeSums);
+        BTreeNode node = current[level];
+        BTreeNode written = new BTreeNode(t, offset, file, null, subtreeSums);
+        System.arraycopy(node.keys, 0, written.keys, 0, (int) node.getNumKeys());
+        System.arraycopy(node.frequencies, 0, written.frequencies, 0, (int) node.getNumKeys());
+        System.arraycopy(node.children, 0, written.children, 0, node.children.length);
+        if (subtreeSums){
+            System.arraycopy(node.sums, 0, written.sums, 0, node.sums.length);
+        }
+        written.setNumKeys(node.getNumKeys());
+        written.writeNode();
+
+        current[level] = new BTreeNode(t, -1, file, null, subtreeSums);
+        nodeIndex[level]++;
+        filled[level] = 0;
+        closedTotal = totals[level];
+        totals[level] = 0;
+        return offset;
+    }
+
+}
@@ -28,6 +28,11 @@ public class BTreeInsertTest {
         for (int i = 0; i < 1000; i++) {
             tree.insert(rand.nextInt(40));
         }
+        try {
+            tree.flush();
+        } catch (Exception e) {
+            System.out.println(e);
+        }
 
         /** WRITE OUT A FILE CONTAINING BTREE **/
        // RandomAccessFile dumpTest = null;
@@ -0,0 +1,92 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Contents of the <btree>.metadata file written next to a BTree data file:
+ * the offset of the root node, the degree, and flags recording how the keys
+ * were stored. Older BTrees have no flags, which are read as 0.
+ */
+public class BTreeMetadata {
+
+    public static final int CANONICAL = 1; //flag: keys are the smaller of each sequence and its reverse complement
+    public static final int SUBTREE_SUMS = 2; //flag: nodes store the total frequency under each child
+
+    private long rootOffset; //offset of root node in BTree file
+    private int degree; //degree of BTree
+    private int flags; //how keys were stored, e.g. CANONICAL
+
+    /**
+     * Constructor
+     * @param rootOffset --offset of root node in BTree file (long)
+     * @param degree --degree of BTree (int)
+     * @param canonical --true if keys are stored canonically (boolean)
+     * @param subtreeSums --true if nodes store subtree sums (boolean)
+     */
+    public BTreeMetadata(long rootOffset, int degree, boolean canonical, boolean subtreeSums){
+        this(rootOffset, degree, (canonical ? CANONICAL : 0) | (subtreeSums ? SUBTREE_SUMS : 0));
+    }
+
+    private BTreeMetadata(long rootOffset, int degree, int flags){
+        this.rootOffset = rootOffset;
+        this.degree = degree;
+        this.flags = flags;
+    }
+
+    /**
+     * Read the metadata of a BTree
+     * @param btreefile --name of BTree data file (String)
+     * @return metadata recorded for the BTree
+     * @throws FileNotFoundException if the BTree has no metadata file
+     * @throws IOException if the metadata file can't be read
+     */
+    public static BTreeMetadata read(String btreefile) throws IOException {
+        try (RandomAccessFile meta = new RandomAccessFile(btreefile + ".metadata", "r")) {
+            long rootOffset = meta.readLong();
+            int degree = meta.readInt();
+            int flags = 0;
+            if (meta.length() >= 16){   //older BTrees have no flags
+                flags = meta.readInt();
+            }
+            return new BTreeMetadata(rootOffset, degree, flags);
+        }
+    }
+
+    /**
+     * Write the metadata file of a BTree, replacing any earlier one
+     * @param btreefile --name of BTree data file (String)
+     * @throws FileNotFoundException if the metadata file can't be created
+     * @throws IOException if the metadata file can't be written
+     */
+    public void write(String btreefile) throws IOException {
+        try (RandomAccessFile meta = new RandomAccessFile(btreefile + ".metadata", "rw")) {
+            meta.setLength(0);
+            meta.writeLong(rootOffset);
+            meta.writeInt(degree);
+            meta.writeInt(flags);
+        }
+    }
+
+    public long getRootOffset(){
+        return rootOffset;
+    }
+
+    public int getDegree(){
+        return degree;
+    }
+
+    /**
+     * @return true if keys are the smaller of each sequence and its reverse complement
+     */
+    public boolean isCanonical(){
+        return (flags & CANONICAL) != 0;
+    }
+
+    /**
+     * @return true if nodes store the total frequency under each child
+     */
+    public boolean hasSubtreeSums(){
+        return (flags & SUBTREE_SUMS) != 0;
+    }
+
+}
@@ -1,15 +1,23 @@
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class BTreeNode {
 
-    public TreeObject keys[]; //array of keys inside this node
+    public long keys[]; //array of keys inside this node, only the first numKeys are in use
+    public int frequencies[]; //frequencies[i] is the number of times keys[i] has appeared
     public long children[]; //array of this node's children's file offsets
+    public long sums[]; //sums[i] is the total frequency of every key under children[i] (null if not kept)
     private int t; //degree of BTree
     private long offset; //offset within BTree file
     private long numKeys; //number of keys currently stored in this node
     private RandomAccessFile file; //file that BTree is stored in
-    private Cache cache; //cache containing BTreeNodes
+    private BufferPool pool; //off-heap page pool reads and writes go through, null to use file directly
+    private boolean dirty; //true if this node has changed since it was last written
+    private int keyChanges; //counts changes to which keys are stored here (not to their frequencies)
+    private static final ThreadLocal<ByteBuffer> pages = new ThreadLocal<ByteBuffer>(); //buffer each thread encodes and reads whole nodes in
 
     /**
      * Constructor
@@ -18,24 +26,50 @@ public class BTreeNode {
      * @param offset --offset to be stored at within BTree file (long)
      * @param file --file that BTree is stored in
      */
-    public BTreeNode(int t, long offset, RandomAccessFile file, Cache cache){
+    public BTreeNode(int t, long offset, RandomAccessFile file){
+        this(t, offset, file, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param t --degree of BTree (int)
+     * @param offset --offset to be stored at within BTree file (long)
+     * @param file --file that BTree is stored in
+     * @param pool --buffer pool to read and write through (null for none)
+     */
+    public BTreeNode(int t, long offset, RandomAccessFile file, BufferPool pool){
+        this(t, offset, file, pool, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param t --degree of BTree (int)
+     * @param offset --offset to be stored at within BTree file (long)
+     * @param file --file that BTree is stored in
+     * @param pool --buffer pool to read and write through (null for none)
+     * @param subtreeSums --true if the node stores the total frequency under each child (boolean)
+     */
+    public BTreeNode(int t, long offset, RandomAccessFile file, BufferPool pool, boolean subtreeSums){
         this.t = t;
         this.file = file;
+        this.pool = pool;
         //maximum # of values = 2t - 1
-        keys = new TreeObject[2 * (this.t) - 1];
-        //initialize each to null
-        for (int i = 0; i < keys.length; i++){
-            keys[i] = null;
-        }
+        keys = new long[2 * (this.t) - 1];
+        frequencies = new int[2 * (this.t) - 1];
         //maximum # of children: 2t
         children = new long[2 * (this.t)];
         //initialize each to -1 (invalid offset)
         for (int i = 0; i < children.length; i++){
             children[i] = -1;
         }
+        if (subtreeSums){
+            sums = new long[2 * (this.t)];
+        }
         this.offset = offset;
         numKeys = 0;
-        this.cache = cache;
+        dirty = false;
     }
 
     public long getNumKeys(){
@@ -49,78 +83,224 @@ public class BTreeNode {
     /**
      * Decrement the number of keys by one
      */
-    public void decNumKeys() { numKeys--; }
+    public void decNumKeys() { numKeys--; keyChanges++; }
 
     /**
-     * Write this node to the end of the file
-     * @throws IOException
+     * Set the number of keys in use, dropping any keys past the new count
+     * @param numKeys --number of keys (long)
      */
-    public void writeNode() throws IOException {
-        // seek to end of file
-        file.seek(offset);
-        // write offset data
-        file.writeLong(offset);
-        // write numKeys data
-        file.writeLong(numKeys);
-        // write children offset
+    public void setNumKeys(long numKeys) { this.numKeys = numKeys; keyChanges++; }
+
+    /**
+     * Lets the cache tell whether keys were added, removed or moved since
+     * it last indexed this node. Frequency changes don't count.
+     * @return number of changes to the set or position of keys (int)
+     */
+    public int getKeyChanges() { return keyChanges; }
+
+    /**
+     * Record that this node has changed and needs to be written back to the file
+     */
+    public void markDirty() { dirty = true; }
+
+    /**
+     * @return true if this node has changed since it was last written or read
+     */
+    public boolean isDirty() { return dirty; }
+
+    /**
+     * Number of bytes one node occupies in the BTree file
+     * @param t --degree of BTree (int)
+     * @return size of a node on disk, in bytes (int)
+     */
+    public static int nodeSize(int t){
+        //long offset, long numKeys, 2t long children, 2t-1 (long key, int frequency) pairs
+        return 8 + 8 + (2 * t * 8) + ((2 * t - 1) * (8 + 4));
+    }
+
+    /**
+     * Number of bytes one node occupies in the BTree file
+     * @param t --degree of BTree (int)
+     * @param subtreeSums --true if nodes store the total frequency under each child (boolean)
+     * @return size of a node on disk, in bytes (int)
+     */
+    public static int nodeSize(int t, boolean subtreeSums){
+        //the 2t long subtree sums follow the keys, so nothing else moves
+        return nodeSize(t) + (subtreeSums ? 2 * t * 8 : 0);
+    }
+
+    /**
+     * Position of the total frequency under a child, relative to the start of its node on disk
+     * @param t --degree of BTree (int)
+     * @param i --index of child (int)
+     * @return byte position of sums[i] within the node (int)
+     */
+    public static int sumPosition(int t, int i){
+        return nodeSize(t) + (i * 8);
+    }
+
+    /**
+     * Position of a child offset relative to the start of its node on disk
+     * @param t --degree of BTree (int)
+     * @param i --index of child (int)
+     * @return byte position of children[i] within the node (int)
+     */
+    public static int childPosition(int t, int i){
+        return 8 + 8 + (i * 8);
+    }
+
+    /**
+     * Position of a key relative to the start of its node on disk
+     * The key's frequency is stored in the 4 bytes after it
+     * @param t --degree of BTree (int)
+     * @param i --index of key (int)
+     * @return byte position of keys[i] within the node (int)
+     */
+    public static int keyPosition(int t, int i){
+        return 8 + 8 + (2 * t * 8) + (i * (8 + 4));
+    }
+
+    /**
+     * @return number of bytes this node occupies in the BTree file
+     */
+    public int size(){
+        return nodeSize(t, sums != null);
+    }
+
+    /**
+     * Total frequency of every key in this node's subtree
+     * Only meaningful if the node stores subtree sums
+     * @return sum of this node's frequencies and the sums under its children
+     */
+    public long total(){
+        long total = 0;
+        for (int i = 0; i < numKeys; i++){
+            total += frequencies[i];
+        }
+        if (sums != null && !isLeaf()){
+            for (int i = 0; i <= numKeys; i++){
+                total += sums[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get this thread's page buffer
+     * It only grows, so trees with different node sizes don't reallocate it
+     * @param size --bytes in one node (int)
+     * @return cleared buffer limited to exactly one node
+     */
+    private static ByteBuffer getPage(int size){
+        ByteBuffer page = pages.get();
+        if (page == null || page.capacity() < size){
+            page = ByteBuffer.allocate(size);
+            pages.set(page);
+        }
+        page.clear();
+        page.limit(size);
+        return page;
+    }
+
+    /**
+     * Encode this node into a buffer, in the same layout it has on disk
+     * @param buffer --buffer with at least size() bytes remaining
+     */
+    public void encode(ByteBuffer buffer){
+        buffer.putLong(offset);
+        buffer.putLong(numKeys);
         for (int i = 0; i < children.length; i++){
-            file.writeLong(children[i]);
+            buffer.putLong(children[i]);
         }
-        // write key data
         for (int i = 0; i < keys.length; i++){
-            if (keys[i] == null){
-                file.writeLong(-1);
-                file.writeInt(0);
+            if (i >= numKeys){
+                //unused slot
+                buffer.putLong(-1);
+                buffer.putInt(0);
             }
             else{
-                file.writeLong(keys[i].getKey());
-                file.writeInt(keys[i].getFrequency());
+                buffer.putLong(keys[i]);
+                buffer.putInt(frequencies[i]);
             }
         }
-
-        //The node has been updated -- move it to the front of the cache
-        if (cache != null){
-            cache.addObject(this);
+        if (sums != null){
+            for (int i = 0; i < sums.length; i++){
+                buffer.putLong(sums[i]);
+            }
         }
+    }
 
+    /**
+     * Decode this node from a buffer holding one node in its on-disk layout
+     * @param buffer --buffer positioned at the start of a node
+     */
+    public void decode(ByteBuffer buffer){
+        this.offset = buffer.getLong();
+        this.numKeys = buffer.getLong();
+        for (int i = 0; i < children.length; i++) {
+            children[i] = buffer.getLong();
+        }
+        for (int i = 0; i < keys.length; i++){
+            keys[i] = buffer.getLong();
+            frequencies[i] = buffer.getInt();
+        }
+        if (sums != null){
+            for (int i = 0; i < sums.length; i++){
+                sums[i] = buffer.getLong();
+            }
+        }
+        keyChanges++;
+    }
 
+    /**
+     * Write this node to its offset in the file
+     * The whole node is encoded into one buffer and written with a single positional write
+     * If there is a buffer pool, the node is written into the pool instead
+     * @throws IOException
+     */
+    public void writeNode() throws IOException {
+        if (pool != null){
+            pool.write(this);
+            dirty = false;
+            return;
+        }
+        ByteBuffer buffer = getPage(size());
+        encode(buffer);
+        buffer.flip();
+        FileChannel channel = file.getChannel();
+        long position = offset;
+        while (buffer.hasRemaining()){
+            position += channel.write(buffer, position);
+        }
+        dirty = false;
     }
 
     /**
      * Reads a node from the file
+     * The whole node is read with a single positional read, then decoded
+     * If there is a buffer pool, the node is read through it
      * @param location --offset to begin reading node at
      * @throws IOException
      */
     public void readNode(long location) throws IOException {
-        //locate node to read
-        file.seek(location);
-        //read key
-        this.offset = file.readLong();
-        //read numKeys
-        this.numKeys = file.readLong();
-        //read children from node
-        for (int i = 0; i < children.length; i++) {
-            children[i] = file.readLong();
+        if (pool != null){
+            pool.read(location, this);
+            dirty = false;
+            return;
         }
-        /// read key data
-        long key = -1;
-        int freq = -1;
-
-        for (int i = 0; i < keys.length; i++){
-            key = file.readLong();
-            freq = file.readInt();
-            if (key == -1){
-                keys[i] = null;
-            }
-            else {
-                if (keys[i] == null) {
-                    keys[i] = new TreeObject(key);
-                }
-                keys[i].frequency = freq;
-                keys[i].key = key;
+        ByteBuffer buffer = getPage(size());
+        FileChannel channel = file.getChannel();
+        long position = location;
+        while (buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if (read < 0){
+                throw new EOFException("Node at offset " + location + " extends past end of BTree file");
             }
+            position += read;
         }
-
+        buffer.flip();
+        decode(buffer);
+        dirty = false;
     }
 
     /**
@@ -131,76 +311,124 @@ public class BTreeNode {
     }
 
     /**
-     * Add a new key to the node
-     * @param key --long to be added
-     * @return true if value was successfully added, false if node is full.
+     * Binary search the first n keys of a sorted array.
+     * The loop has no data-dependent branch other than a conditional move,
+     * and runs the same number of times for every key.
+     * @param keys --sorted keys (long[])
+     * @param n --number of keys in use (int)
+     * @param key --key to look for (long)
+     * @return index of key if found, otherwise (-(insertion point) - 1)
      */
-    public int addKey(long key){
-        int i = 0;
-        while (i < numKeys && keys[i].getKey() < key){
-            i++;
+    public static int findKey(long keys[], int n, long key){
+        if (n == 0){
+            return -1;
         }
-        if (i == keys.length){
-            //node is full
+        int base = 0;
+        int len = n;
+        while (len > 1){
+            int half = len >>> 1;
+            base = (keys[base + half] < key) ? base + half : base;
+            len -= half;
+        }
+        int i = base + ((keys[base] < key) ? 1 : 0);
+        return (i < n && keys[i] == key) ? i : -(i + 1);
+    }
+
+    /**
+     * Binary search the keys of a node that is still encoded in a buffer.
+     * Same search as findKey(long[], int, long), reading keys in place.
+     * @param buffer --buffer holding the node (ByteBuffer)
+     * @param base --position of the start of the node within buffer (int)
+     * @param t --degree of BTree (int)
+     * @param key --key to look for (long)
+     * @return index of key if found, otherwise (-(insertion point) - 1)
+     */
+    public static int findKey(ByteBuffer buffer, int base, int t, long key){
+        int n = (int) buffer.getLong(base + 8);
+        if (n == 0){
             return -1;
         }
-        if (i == numKeys){
-            //at end of list of keys, there is space for new one
-            TreeObject newKey = new TreeObject(key);
-            keys[i] = newKey;
-            numKeys++;
-            try {
-                writeNode();
-            } catch(IOException e){
-                System.err.println(e.getMessage());
-            }
-            return i;
+        int keys = base + keyPosition(t, 0);
+        int lo = 0;
+        int len = n;
+        while (len > 1){
+            int half = len >>> 1;
+            lo = (buffer.getLong(keys + (lo + half) * 12) < key) ? lo + half : lo;
+            len -= half;
         }
-        if (keys[i].getKey() == key){
+        int i = lo + ((buffer.getLong(keys + lo * 12) < key) ? 1 : 0);
+        return (i < n && buffer.getLong(keys + i * 12) == key) ? i : -(i + 1);
+    }
+
+    /**
+     * Binary search this node's keys
+     * @param key --key to look for (long)
+     * @return index of key if found, otherwise (-(insertion point) - 1)
+     */
+    public int findKey(long key){
+        return findKey(keys, (int) numKeys, key);
+    }
+
+    /**
+     * Add a new key to the node, or increment its frequency if it is already here
+     * The node is only marked dirty; it is written back later by the BTree
+     * @param key --long to be added
+     * @return index the key is stored at, or -1 if node is full.
+     */
+    public int addKey(long key){
+        return addKey(key, 1);
+    }
+
+    /**
+     * Add a new key to the node, or add to its frequency if it is already here
+     * @param key --long to be added
+     * @param count --number of occurrences of key (int)
+     * @return index the key is stored at, or -1 if node is full.
+     */
+    public int addKey(long key, int count){
+        int n = (int) numKeys;
+        int i = findKey(key);
+        if (i >= 0){
             //found a key that already exists
-            keys[i].incrementFrequency();
-            try {
-                writeNode();
-            } catch(IOException e){
-                System.err.println(e.getMessage());
-            }
+            frequencies[i] += count;
+            dirty = true;
             return i;    //don't increment numKeys, we didn't add a new value
         }
-        //keys[i].getKey() > than key
-        //need to shift other elements backward to make space for new key
-        for (int j = keys.length - 1; j > i; j--){
-            keys[j] = keys[j-1];
+        i = -(i + 1);
+        if (n == keys.length){
+            //node is full
+            return -1;
         }
-        TreeObject newKey = new TreeObject(key);
-        keys[i] = newKey;
+        //shift larger keys backward to make space for new key
+        System.arraycopy(keys, i, keys, i + 1, n - i);
+        System.arraycopy(frequencies, i, frequencies, i + 1, n - i);
+        keys[i] = key;
+        frequencies[i] = count;
         numKeys++;
-        try {
-            writeNode();
-        } catch(IOException e){
-            System.err.println(e.getMessage());
-        }
+        keyChanges++;
+        dirty = true;
         return i;
     }
 
+    /**
+     * Move a key (and its frequency) from another node into this one
+     * @param from --node to remove the key from
+     * @param index --index of key within from (int)
+     * @return true if key was moved, false if this node is full
+     */
     public boolean transferKey(BTreeNode from, int index){
-        TreeObject key = from.keys[index];
-        int i = addKey(key.getKey());
+        int i = addKey(from.keys[index]);
         if (i == -1){
             return false;
         }
-        keys[i].frequency = key.frequency;
+        frequencies[i] = from.frequencies[index];
         //remove key from other BTreeNode
-        for (int j = index; j < keys.length - 1; j++){
-            from.keys[j] = from.keys[j + 1];
-        }
+        int remaining = (int) from.numKeys - index - 1;
+        System.arraycopy(from.keys, index + 1, from.keys, index, remaining);
+        System.arraycopy(from.frequencies, index + 1, from.frequencies, index, remaining);
         from.decNumKeys();
-        from.keys[keys.length - 1] = null;
-        try {
-            from.writeNode();
-            writeNode();
-        } catch(IOException e){
-            System.err.println(e.getMessage());
-        }
+        from.markDirty();
+        dirty = true;
         return true;
     }
 
@@ -210,12 +438,7 @@ public class BTreeNode {
      * @return true if key is stored in this node
      */
     public boolean contains(long key){
-        for (int i = 0; i < numKeys; i++){
-            if (keys[i].key == key){
-                return true;
-            }
-        }
-        return false;
+        return findKey(key) >= 0;
     }
 
 }
@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class BTreeSumTest {
+
+    private static final int K = 6; //length of the sequences in the tree
+    private static final int INSERTS = 20000; //occurrences inserted into each tree
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("TESTING: BTree Subtree Sums\n---------------------------");
+        Random rand = new Random(24);
+        int failures = 0;
+        for (int degree : new int[] {2, 4, 10}) {
+            failures += compare(degree, rand);
+        }
+        System.out.println((failures == 0) ? "Done." : failures + " check(s) failed.");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Build a tree with subtree sums and check that its range totals, read
+     * from the sums by BTree and MappedBTree, equal the total of a scan of
+     * the same range, for every short prefix and for random ranges
+     * @param degree --degree of tree (int)
+     * @param rand --source of the sequences and ranges
+     * @return number of failed checks
+     * @throws IOException if the tree can't be written or read
+     */
+    private static int compare(int degree, Random rand) throws IOException {
+        System.out.println("Degree " + degree + "...");
+        File file = File.createTempFile("sumTest", ".btree");
+        file.deleteOnExit();
+        int failures = 0;
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+
+            /** CREATE THE BTREE **/
+            BTree tree = new BTree(degree, data, null, null);
+            tree.setSubtreeSums(true);
+            for (int i = 0; i < INSERTS; i++) {
+                tree.insert(rand.nextInt(1 << (2 * K)), 1 + rand.nextInt(3));
+            }
+            tree.flush();
+            MappedBTree mapped = new MappedBTree(degree, data, tree.getRoot().getOffset());
+
+            /** PREFIXES, AS GeneBankSearch BOUNDS THEM **/
+            for (int length = 0; length <= 3; length++) {
+                int rest = 2 * (K - length);    //bits after the prefix
+                for (long prefix = 0; prefix < (1L << (2 * length)); prefix++) {
+                    long low = prefix << rest;
+                    failures += check(tree, mapped, low, low | ((1L << rest) - 1));
+                }
+            }
+
+            /** RANDOM RANGES **/
+            for (int i = 0; i < 500; i++) {
+                long low = rand.nextInt(1 << (2 * K));
+                long high = low + rand.nextInt(1 << (2 * K - 2));
+                failures += check(tree, mapped, low, high);
+            }
+            failures += check(tree, mapped, 100, 99);   //empty range
+        }
+        return failures;
+    }
+
+    /**
+     * Compare the totals of one range
+     * @param tree --tree with subtree sums
+     * @param mapped --the same tree, memory-mapped
+     * @param low --smallest key in range (long)
+     * @param high --largest key in range (long)
+     * @return 1 if the totals differ, otherwise 0
+     * @throws IOException if a node can't be read
+     */
+    private static int check(BTree tree, MappedBTree mapped, long low, long high) throws IOException {
+        long scanned[] = new long[1];
+        tree.scan(low, high, (sequence, frequency) -> scanned[0] += frequency);
+        long summed = tree.sum(low, high);
+        long mappedSum = mapped.sum(low, high);
+        if (summed != scanned[0] || mappedSum != scanned[0]) {
+            System.out.println("FAILED: range " + low + "-" + high + " scanned " + scanned[0]
+                    + ", summed " + summed + ", mapped sum " + mappedSum);
+            return 1;
+        }
+        return 0;
+    }
+
+}
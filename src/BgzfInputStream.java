@@ -0,0 +1,215 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a BGZF file: a gzip file made of independently compressed
+ * blocks of at most 64 KB, each recording its own compressed size. Blocks are
+ * read one after another but inflated on a pool of threads, several blocks
+ * ahead of the reader, and their contents are returned in order.
+ */
+public class BgzfInputStream extends InputStream {
+
+    private static final int HEADER_BYTES = 12; //fixed part of a gzip member header, up to XLEN
+    private static final int TRAILER_BYTES = 8; //CRC32 and uncompressed size after the compressed data
+
+    private DataInputStream in; //compressed file
+    private ExecutorService workers; //threads that inflate blocks
+    private ArrayDeque<Future<byte[]>> pending; //blocks being inflated, in file order
+    private int ahead; //number of blocks to inflate ahead of the reader
+    private boolean eof; //true once the last block has been read from the file
+
+    private byte block[] = new byte[0]; //contents of the block being read
+    private int pos; //next byte of block to return
+
+    /**
+     * Constructor
+     * @param in --BGZF compressed stream (InputStream)
+     * @param threads --number of threads to inflate blocks on (int)
+     */
+    public BgzfInputStream(InputStream in, int threads) {
+        this.in = new DataInputStream(in);
+        threads = Math.max(1, threads);
+        workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bgzf-inflater");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pending = new ArrayDeque<Future<byte[]>>();
+        ahead = 2 * threads;
+    }
+
+    /**
+     * Check whether a file is BGZF: gzip whose first member has the BC extra field
+     * @param channel --channel of file to check
+     * @return true if the file is BGZF
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isBgzf(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 6).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        return header.get(0) == (byte) 0x1f && header.get(1) == (byte) 0x8b && header.get(2) == 8   //gzip, deflate
+                && (header.get(3) & 4) != 0 && header.getShort(10) >= 6    //has an extra field
+                && header.get(12) == 'B' && header.get(13) == 'C' && header.getShort(14) == 2;
+    }
+
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[pos++] & 0xff;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public void close() throws IOException {
+        workers.shutdownNow();
+        in.close();
+    }
+
+    /**
+     * Make sure there are bytes left in the current block, moving on to the next one if needed
+     * @return false at the end of the file
+     * @throws IOException if the file can't be read or a block is corrupt
+     */
+    private boolean fill() throws IOException {
+        while (pos == block.length) {
+            //keep the workers busy with the blocks after this one
+            while (!eof && pending.size() < ahead) {
+                byte compressed[] = readBlock();
+                if (compressed == null) {
+                    eof = true;
+                }
+                else {
+                    pending.add(workers.submit(() -> inflate(compressed)));
+                }
+            }
+            Future<byte[]> next = pending.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                block = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decompressing");
+            } catch (ExecutionException e) {
+                throw new IOException("Corrupt BGZF block: " + e.getCause().getMessage(), e.getCause());
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Read the next block's compressed data and trailer from the file
+     * @return compressed data followed by the 8 byte trailer, or null at the end of the file
+     * @throws IOException if the file can't be read or isn't BGZF
+     */
+    private byte[] readBlock() throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        byte header[] = new byte[HEADER_BYTES];
+        header[0] = (byte) first;
+        in.readFully(header, 1, HEADER_BYTES - 1);
+        if (header[0] != (byte) 0x1f || header[1] != (byte) 0x8b || (header[3] & 4) == 0) {
+            throw new IOException("Not a BGZF block");
+        }
+        int extraLength = littleEndian(header, 10, 2);
+        byte extra[] = new byte[extraLength];
+        in.readFully(extra);
+        //find the BC subfield, which holds the size of the whole block minus 1
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= extraLength; i += 4 + littleEndian(extra, i + 2, 2)) {
+            if (extra[i] == 'B' && extra[i + 1] == 'C') {
+                blockSize = littleEndian(extra, i + 4, 2) + 1;
+            }
+        }
+        int remaining = blockSize - HEADER_BYTES - extraLength;
+        if (blockSize < 0 || remaining < TRAILER_BYTES) {
+            throw new IOException("BGZF block has no valid size");
+        }
+        byte compressed[] = new byte[remaining];
+        in.readFully(compressed);
+        return compressed;
+    }
+
+    /**
+     * Inflate one block and check it against its trailer
+     * @param compressed --compressed data followed by the 8 byte trailer (byte[])
+     * @return block contents
+     * @throws DataFormatException if the data is corrupt
+     * @throws EOFException if the data ends early
+     */
+    private static byte[] inflate(byte compressed[]) throws DataFormatException, EOFException {
+        int dataLength = compressed.length - TRAILER_BYTES;
+        int crc = littleEndian(compressed, dataLength, 4);
+        int size = littleEndian(compressed, dataLength + 4, 4);
+        byte data[] = new byte[size];
+        Inflater inflater = new Inflater(true); //raw deflate, the gzip header has already been read
+        try {
+            inflater.setInput(compressed, 0, dataLength);
+            int n = 0;
+            while (n < size) {
+                int inflated = inflater.inflate(data, n, size - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException("BGZF block is shorter than its recorded size");
+                }
+                n += inflated;
+            }
+        } finally {
+            inflater.end();
+        }
+        CRC32 check = new CRC32();
+        check.update(data, 0, size);
+        if ((int) check.getValue() != crc) {
+            throw new DataFormatException("BGZF block fails its CRC check");
+        }
+        return data;
+    }
+
+    /**
+     * @param bytes (byte[])
+     * @param offset --first byte (int)
+     * @param length --number of bytes, at most 4 (int)
+     * @return little-endian unsigned value of the bytes (as an int, so 4 byte values may be negative)
+     */
+    private static int littleEndian(byte bytes[], int offset, int length) {
+        int value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,196 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pool of node-sized pages kept outside the Java heap, in direct ByteBuffers.
+ * The pool is sized in bytes rather than nodes, and holds nodes in their
+ * encoded on-disk form; a node is only decoded into a BTreeNode when it is
+ * read. Because the pages are off-heap, a pool of several gigabytes adds
+ * nothing for the garbage collector to scan.
+ *
+ * Pages that are written are kept dirty and only written to the file when
+ * they are evicted or the pool is flushed. Pages are evicted with CLOCK.
+ */
+public class BufferPool {
+
+    private static final int SLAB_BYTES = 1 << 30; //largest direct buffer allocated at once
+
+    private FileChannel channel; //BTree file
+    private int pageSize; //bytes in one node
+    private int numFrames; //number of pages the pool holds
+    private int framesPerSlab; //number of pages in each direct buffer
+    private ByteBuffer slabs[]; //direct buffers the pages live in
+    private ByteBuffer views[]; //one reusable view of each slab, positioned on the page being used
+
+    private long frameOffsets[]; //offset of the node held by each frame
+    private boolean dirty[]; //true if frame has changed since it was read or written
+    private boolean referenced[]; //CLOCK reference bit of each frame
+    private LongIntHashMap frames; //node offset -> frame holding it
+    private int used; //frames handed out so far, the rest have never held a page
+    private int hand; //next frame CLOCK examines
+
+    private long hits; //reads that found the node in the pool
+    private long misses; //reads that had to go to the file
+
+    /**
+     * Constructor
+     * @param file --file the BTree is stored in
+     * @param t --degree of BTree (int)
+     * @param maxBytes --memory to use for pages (long)
+     */
+    public BufferPool(RandomAccessFile file, int t, long maxBytes) {
+        this(file, t, false, maxBytes);
+    }
+
+    /**
+     * Constructor
+     * @param file --file the BTree is stored in
+     * @param t --degree of BTree (int)
+     * @param subtreeSums --true if nodes store the total frequency under each child (boolean)
+     * @param maxBytes --memory to use for pages (long)
+     */
+    public BufferPool(RandomAccessFile file, int t, boolean subtreeSums, long maxBytes) {
+        this.channel = file.getChannel();
+        pageSize = BTreeNode.nodeSize(t, subtreeSums);
+        numFrames = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / pageSize));
+        framesPerSlab = SLAB_BYTES / pageSize;
+        int numSlabs = (numFrames + framesPerSlab - 1) / framesPerSlab;
+        slabs = new ByteBuffer[numSlabs];
+        views = new ByteBuffer[numSlabs];
+        for (int i = 0; i < numSlabs; i++) {
+            int frames = Math.min(framesPerSlab, numFrames - i * framesPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(frames * pageSize);
+            views[i] = slabs[i].duplicate();
+        }
+        frameOffsets = new long[numFrames];
+        dirty = new boolean[numFrames];
+        referenced = new boolean[numFrames];
+        frames = new LongIntHashMap(numFrames);
+    }
+
+    /**
+     * Read a node, from the pool if it's there or from the file if it isn't
+     * @param offset --offset of node within BTree file (long)
+     * @param node --node to decode page into
+     * @throws IOException if node isn't in the pool and can't be read
+     */
+    public void read(long offset, BTreeNode node) throws IOException {
+        int frame = frames.get(offset, -1);
+        if (frame == -1) {
+            misses++;
+            frame = allocate(offset);
+            ByteBuffer page = page(frame);
+            long position = offset;
+            while (page.hasRemaining()) {
+                int read = channel.read(page, position);
+                if (read < 0) {
+                    frames.remove(offset);   //leave the frame empty rather than holding a partial page
+                    frameOffsets[frame] = -1;
+                    throw new EOFException("Node at offset " + offset + " extends past end of BTree file");
+                }
+                position += read;
+            }
+        }
+        else {
+            hits++;
+        }
+        referenced[frame] = true;
+        node.decode(page(frame));
+    }
+
+    /**
+     * Write a node into the pool. It reaches the file when it is evicted or flushed.
+     * @param node --node to encode
+     * @throws IOException if a page has to be evicted and can't be written
+     */
+    public void write(BTreeNode node) throws IOException {
+        int frame = frames.get(node.getOffset(), -1);
+        if (frame == -1) {
+            frame = allocate(node.getOffset());   //whole page is overwritten, no need to read it
+        }
+        node.encode(page(frame));
+        dirty[frame] = true;
+        referenced[frame] = true;
+    }
+
+    /**
+     * Write every dirty page to the file
+     * @throws IOException if a page can't be written
+     */
+    public void flush() throws IOException {
+        for (int frame = 0; frame < used; frame++) {
+            if (dirty[frame]) {
+                writeFrame(frame);
+            }
+        }
+    }
+
+    /**
+     * @return summary of pool size and how often reads hit
+     */
+    public String getStatistics() {
+        long lookups = hits + misses;
+        return "Buffer pool (" + String.format("%.1f", (double) numFrames * pageSize / (1024 * 1024)) + " MB, " + numFrames + " pages): "
+                + "hit ratio " + ((lookups == 0) ? "n/a" : String.format("%.3f", (double) hits / lookups))
+                + " (" + hits + "/" + lookups + ")";
+    }
+
+    /**
+     * Get a frame to hold a node, evicting a page if every frame is in use
+     * @param offset --offset of node the frame will hold (long)
+     * @return frame
+     * @throws IOException if the evicted page is dirty and can't be written
+     */
+    private int allocate(long offset) throws IOException {
+        int frame;
+        if (used < numFrames) {
+            frame = used++;
+        }
+        else {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % numFrames;
+            }
+            frame = hand;
+            hand = (hand + 1) % numFrames;
+            if (dirty[frame]) {
+                writeFrame(frame);
+            }
+            frames.remove(frameOffsets[frame]);
+        }
+        frameOffsets[frame] = offset;
+        dirty[frame] = false;
+        frames.put(offset, frame);
+        return frame;
+    }
+
+    /**
+     * Write a frame's page to the node's offset in the file
+     * @param frame --frame to write (int)
+     * @throws IOException if it can't be written
+     */
+    private void writeFrame(int frame) throws IOException {
+        ByteBuffer page = page(frame);
+        long position = frameOffsets[frame];
+        while (page.hasRemaining()) {
+            position += channel.write(page, position);
+        }
+        dirty[frame] = false;
+    }
+
+    /**
+     * @param frame (int)
+     * @return view of the slab holding frame, positioned on its page
+     */
+    private ByteBuffer page(int frame) {
+        ByteBuffer view = views[frame / framesPerSlab];
+        int start = (frame % framesPerSlab) * pageSize;
+        view.limit(start + pageSize);
+        view.position(start);
+        return view;
+    }
+
+}
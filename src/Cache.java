@@ -1,81 +1,265 @@
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.Arrays;
 
 public class Cache<T> {
 
     /** INSTANCE VARIABLES **/
-    private LinkedList<BTreeNode> cache; //linked list used to implement cache
+    private LongIntHashMap entries; //offset of each cached node in the BTree file -> id of its entry
+    private LongIntHashMap index; //key -> id of entry whose node holds it
+    private CacheEntry table[]; //entries by id, null for ids not in use
+    private int freeIds[]; //ids of evicted entries, to be reused
+    private int freeCount; //number of ids in freeIds
+    private int nextId; //lowest id never handed out
+    private CacheEntry found; //entry holding the key findIndexed() last found
+    private CachePolicy policy; //decides which node to evict
     private int size;   //maximum number of elements to store in cache
 
+    private long nodeHits; //getNode() calls that found the node
+    private long nodeMisses; //getNode() calls that didn't
+    private long keyHits; //getFrequency()/getObject() calls that found the key
+    private long keyMisses; //getFrequency()/getObject() calls that didn't
+
     /**
-     * Constructor
+     * Constructor, for a least-recently-used cache
      * @param size --maximum number of elements to store in cache
      */
     public Cache(int size) {
-        cache = new LinkedList<BTreeNode>();
+        this(size, new LRUPolicy());
+    }
+
+    /**
+     * Constructor
+     * @param size --maximum number of elements to store in cache
+     * @param policy --eviction policy
+     */
+    public Cache(int size, CachePolicy policy) {
+        entries = new LongIntHashMap(Math.min(size, 1 << 20));
+        index = new LongIntHashMap(1024);
+        table = new CacheEntry[16];
+        freeIds = new int[16];
+        this.policy = policy;
         this.size = size;
     }
 
     /**
      * Adds a BTreeNode to the cache
-     * If node is already present, it is moved to the front
-     * If the cache is full, the last element is removed.
+     * If a node with the same offset is already present, it is replaced
+     * by this one and counts as a use of that node
+     * If the cache is full, the policy chooses a node to remove.
      * @param node --node to be added
      */
     public void addObject(BTreeNode node) {
-        if (cache.contains(node)) {
-            cache.remove(node);
+        CacheEntry entry = entryAt(node.getOffset());
+        if (entry != null) {
+            if (entry.node != node || entry.indexedChanges != node.getKeyChanges()) {
+                entry.node = node;
+                indexKeys(entry);
+            }
+            policy.access(entry);
+        }
+        else {
+            entry = new CacheEntry(node);
+            assignId(entry);
+            entries.put(node.getOffset(), entry.id);
+            indexKeys(entry);
+            policy.admit(entry);
         }
-
-        cache.addFirst(node);
         checkSize();
     }
 
+    /**
+     * Give an entry an id in the entry table, reusing one freed by an eviction if there is one
+     * @param entry --entry being admitted
+     */
+    private void assignId(CacheEntry entry) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        }
+        else {
+            id = nextId++;
+            if (id == table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+        }
+        entry.id = id;
+        table[id] = entry;
+    }
+
+    /**
+     * @param offset --offset of node within BTree file (long)
+     * @return entry holding the node at offset, or null if it isn't cached
+     */
+    private CacheEntry entryAt(long offset) {
+        int id = entries.get(offset, -1);
+        return (id == -1) ? null : table[id];
+    }
+
+    /**
+     * Return an evicted entry's id to be reused
+     * @param entry --entry that was evicted
+     */
+    private void releaseId(CacheEntry entry) {
+        table[entry.id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = entry.id;
+    }
+
+    /**
+     * Point the key index at this entry for every key its node holds
+     * @param entry --entry to index
+     */
+    private void indexKeys(CacheEntry entry) {
+        BTreeNode node = entry.node;
+        for (int i = 0; i < node.getNumKeys(); i++) {
+            index.put(node.keys[i], entry.id);
+        }
+        entry.indexedChanges = node.getKeyChanges();
+    }
+
+    /**
+     * Find the cached entry holding a key, using the key index, and leave it in found.
+     * An index entry whose node no longer holds the key (the key moved to
+     * another node, or the id now belongs to another entry) is dropped.
+     * @param key (long)
+     * @return slot of key within found's node, or -1 if key isn't cached
+     */
+    private int findIndexed(long key) {
+        int id = index.get(key, -1);
+        if (id == -1) {
+            keyMisses++;
+            return -1;
+        }
+        CacheEntry entry = table[id];
+        int slot = (entry == null) ? -1 : entry.node.findKey(key);
+        if (slot < 0) {
+            index.remove(key);
+            keyMisses++;
+            return -1;
+        }
+        keyHits++;
+        found = entry;
+        return slot;
+    }
+
+    /**
+     * Searches cache for the node stored at a given offset
+     * @param offset --offset of node within BTree file (long)
+     * @return cached node, or null if it isn't cached
+     */
+    public BTreeNode getNode(long offset) {
+        CacheEntry entry = entryAt(offset);
+        if (entry == null) {
+            nodeMisses++;
+            return null;
+        }
+        nodeHits++;
+        return entry.node;
+    }
+
     /**
      * Searches cache for a specific key
      * @param key (long)
      * @return frequency of key's occurrence.
      */
     public int getFrequency(long key) {
-        int i = 0;
-        while (i < cache.size()-1) {
-            for (TreeObject k : cache.get(i).keys) {
-                if (k != null && k.getKey() == key) {
-                    addObject(cache.get(i));    //move this node to the front
-                    return k.getFrequency();
-                }
-            }
-            i++;
+        int slot = findIndexed(key);
+        if (slot == -1) {
+            return 0;
         }
-        return 0;
+        policy.access(found);
+        return found.node.frequencies[slot];
     }
 
     /**
      * Searches cache for a specific key
+     * If found, its frequency is incremented and the node counts as used
      * @param key (long)
      * @return BTreeNode containing key
      */
     public BTreeNode getObject(long key) {
-        int i = 0;
-        while (i < cache.size()-1) {
-            for (TreeObject k : cache.get(i).keys) {
-                if (k != null && k.getKey() == key) {
-                    k.incrementFrequency(); //increment frequence of key
-                    return cache.get(i);    //return node --needs to be written
-                }
-            }
-            i++;
+        return getObject(key, 1);
+    }
+
+    /**
+     * Searches cache for a specific key
+     * If found, count is added to its frequency and the node counts as used
+     * @param key (long)
+     * @param count --number of occurrences to add (int)
+     * @return BTreeNode containing key
+     */
+    public BTreeNode getObject(long key, int count) {
+        int slot = findIndexed(key);
+        if (slot == -1) {
+            return null;
         }
-        return null;
+        found.node.frequencies[slot] += count; //add to frequency of key
+        policy.access(found);
+        return found.node;    //return node --needs to be written
     }
 
     /**
      * Check the size of the cache
-     * If it is full, the last element is removed
+     * If it is full, the policy's victim is removed
+     * and written back to the file if it has changed
      */
     public void checkSize() {
-        if (cache.size() == size) {
-            cache.removeLast();
+        while (entries.size() > size) {
+            CacheEntry evicted = policy.evict();
+            entries.remove(evicted.getOffset());
+            for (int i = 0; i < evicted.node.getNumKeys(); i++) {
+                //the key may since have been indexed to the node it moved to
+                if (index.get(evicted.node.keys[i], -1) == evicted.id) {
+                    index.remove(evicted.node.keys[i]);
+                }
+            }
+            releaseId(evicted);
+            if (evicted.node.isDirty()) {
+                try {
+                    evicted.node.writeNode();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write every cached node that has changed back to the file
+     * @throws IOException if a node can't be written
+     */
+    public void flush() throws IOException {
+        for (int id = 0; id < nextId; id++) {
+            CacheEntry entry = table[id];
+            if (entry != null && entry.node.isDirty()) {
+                entry.node.writeNode();
+            }
+        }
+    }
+
+    /**
+     * @return summary of the policy used and how often lookups hit
+     */
+    public String getStatistics() {
+        return "Cache (" + policy.getName() + ", " + size + " nodes): "
+                + "node hit ratio " + ratio(nodeHits, nodeMisses)
+                + " (" + nodeHits + "/" + (nodeHits + nodeMisses) + "), "
+                + "key hit ratio " + ratio(keyHits, keyMisses)
+                + " (" + keyHits + "/" + (keyHits + keyMisses) + ")";
+    }
+
+    /**
+     * @param hits --number of hits (long)
+     * @param misses --number of misses (long)
+     * @return hits / (hits + misses), formatted to 3 places
+     */
+    private static String ratio(long hits, long misses) {
+        if (hits + misses == 0) {
+            return "n/a";
         }
+        return String.format("%.3f", (double) hits / (hits + misses));
     }
 
 }
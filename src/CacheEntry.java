@@ -0,0 +1,30 @@
+/**
+ * One node held by the Cache, along with the bookkeeping
+ * eviction policies need to order it
+ */
+public class CacheEntry {
+
+    BTreeNode node; //cached node
+    int id; //position in the Cache's entry table, which the key index maps keys to
+    int indexedChanges; //node.getKeyChanges() when node's keys were last indexed
+    CacheEntry prev; //previous entry in the policy's list
+    CacheEntry next; //next entry in the policy's list
+    EntryList list; //list this entry is currently linked into, null if none
+    boolean referenced; //reference bit, used by CLOCK
+
+    /**
+     * Constructor
+     * @param node --node to cache
+     */
+    CacheEntry(BTreeNode node) {
+        this.node = node;
+    }
+
+    /**
+     * @return offset of cached node within BTree file
+     */
+    long getOffset() {
+        return node.getOffset();
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Decides which node the Cache evicts when it is full.
+ * The Cache tells the policy about every entry it admits and every hit,
+ * and asks it for a victim whenever it holds more nodes than its size.
+ */
+public interface CachePolicy {
+
+    /**
+     * @return short name of policy, as given on the command line
+     */
+    String getName();
+
+    /**
+     * A node that wasn't cached has been added
+     * @param entry --new entry
+     */
+    void admit(CacheEntry entry);
+
+    /**
+     * A cached node has been used again
+     * @param entry --entry that was hit
+     */
+    void access(CacheEntry entry);
+
+    /**
+     * Choose a node to evict and forget it
+     * @return entry to evict
+     */
+    CacheEntry evict();
+
+    /**
+     * Create a policy by name
+     * @param name --lru, clock, 2q or arc (case insensitive)
+     * @param size --number of nodes the cache holds (int)
+     * @return new policy, or null if name isn't recognized
+     */
+    static CachePolicy forName(String name, int size) {
+        switch (name.toLowerCase()) {
+            case "lru": return new LRUPolicy();
+            case "clock": return new ClockPolicy();
+            case "2q": return new TwoQueuePolicy(size);
+            case "arc": return new ARCPolicy(size);
+            default: return null;
+        }
+    }
+
+}
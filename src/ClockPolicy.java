@@ -0,0 +1,47 @@
+/**
+ * CLOCK: an approximation of LRU that doesn't reorder anything on a hit.
+ * Entries sit in a ring with a reference bit that a hit sets. The hand
+ * sweeps the ring, clearing set bits, and evicts the first entry whose
+ * bit is already clear. New entries start with a clear bit, so nodes
+ * touched once by a scan are evicted before nodes that are reused.
+ */
+public class ClockPolicy implements CachePolicy {
+
+    private EntryList ring = new EntryList(); //the hand wraps from the tail back to the head
+    private CacheEntry hand; //next entry to examine, null means the head
+
+    public String getName() {
+        return "clock";
+    }
+
+    public void admit(CacheEntry entry) {
+        entry.referenced = false;
+        if (hand == null) {
+            hand = ring.first();
+        }
+        //just behind the hand, so it is the last entry the hand reaches
+        ring.addBefore(entry, hand);
+    }
+
+    public void access(CacheEntry entry) {
+        entry.referenced = true;
+    }
+
+    public CacheEntry evict() {
+        if (ring.size() == 0) {
+            return null;
+        }
+        if (hand == null) {
+            hand = ring.first();
+        }
+        while (hand.referenced) {
+            hand.referenced = false;
+            hand = (hand.next == null) ? ring.first() : hand.next;
+        }
+        CacheEntry victim = hand;
+        hand = victim.next;
+        ring.remove(victim);
+        return victim;
+    }
+
+}
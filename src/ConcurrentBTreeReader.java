@@ -0,0 +1,130 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-only view of a BTree file that any number of threads can search at
+ * once. Nodes are read with positional FileChannel reads, which don't share a
+ * file pointer, into a buffer belonging to each thread. Read nodes are kept
+ * in a lock-free direct-mapped cache: each offset hashes to one slot of an
+ * AtomicReferenceArray, and a node read into a slot replaces whatever was
+ * there. Cached nodes are never changed after they are read, so threads can
+ * share them without locking.
+ */
+public class ConcurrentBTreeReader {
+
+    private int t; //degree
+    private FileChannel channel; //BTree file
+    private BTreeNode root; //root node, always in memory
+    private AtomicReferenceArray<BTreeNode> cache; //node cache, slot chosen by hash of offset (null if not used)
+    private int mask; //number of cache slots - 1, a power of 2 minus 1
+    private ThreadLocal<ByteBuffer> pages; //buffer each thread reads nodes into
+
+    private LongAdder hits = new LongAdder(); //node reads found in the cache
+    private LongAdder misses = new LongAdder(); //node reads that went to the file
+
+    /**
+     * Constructor
+     * @param t --degree of BTree (int)
+     * @param file --file BTree is stored in
+     * @param rootOffset --offset of root node (long)
+     * @param cacheSize --number of nodes to cache, rounded up to a power of 2 (0 for no cache)
+     * @throws IOException if the root can't be read
+     */
+    public ConcurrentBTreeReader(int t, RandomAccessFile file, long rootOffset, int cacheSize) throws IOException {
+        this.t = t;
+        this.channel = file.getChannel();
+        pages = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BTreeNode.nodeSize(t)));
+        if (cacheSize > 0) {
+            int slots = Integer.highestOneBit(Math.min(cacheSize, 1 << 30));
+            if (slots < cacheSize && slots < (1 << 30)) {
+                slots <<= 1;
+            }
+            cache = new AtomicReferenceArray<BTreeNode>(slots);
+            mask = slots - 1;
+        }
+        root = readNode(rootOffset);
+    }
+
+    /**
+     * Search the BTree for a sequence. Safe to call from several threads at once.
+     * @param sequence --to search for (long)
+     * @return frequency of sequence's occurrence
+     * @throws IOException if a node can't be read
+     */
+    public long search(long sequence) throws IOException {
+        BTreeNode node = root;
+        while (true) {
+            int i = node.findKey(sequence);
+            if (i >= 0) {
+                return node.frequencies[i];
+            }
+            long child = node.children[-(i + 1)];
+            if (child == -1) {
+                return 0;
+            }
+            node = getNode(child);
+        }
+    }
+
+    /**
+     * @return summary of how often node reads were found in the cache
+     */
+    public String getStatistics() {
+        long h = hits.sum();
+        long lookups = h + misses.sum();
+        return "Concurrent cache (" + ((cache == null) ? 0 : cache.length()) + " slots): node hit ratio "
+                + ((lookups == 0) ? "n/a" : String.format("%.3f", (double) h / lookups)) + " (" + h + "/" + lookups + ")";
+    }
+
+    /**
+     * Get a node from the cache, or read it and cache it
+     * @param offset --offset of node within BTree file (long)
+     * @return node at offset
+     * @throws IOException if the node can't be read
+     */
+    private BTreeNode getNode(long offset) throws IOException {
+        if (cache == null) {
+            misses.increment();
+            return readNode(offset);
+        }
+        int slot = (int) ((offset * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        BTreeNode node = cache.get(slot);
+        if (node != null && node.getOffset() == offset) {
+            hits.increment();
+            return node;
+        }
+        misses.increment();
+        node = readNode(offset);
+        cache.set(slot, node);
+        return node;
+    }
+
+    /**
+     * Read a node with a positional read into this thread's buffer
+     * @param offset --offset of node within BTree file (long)
+     * @return new node
+     * @throws IOException if the node can't be read
+     */
+    private BTreeNode readNode(long offset) throws IOException {
+        ByteBuffer page = pages.get();
+        page.clear();
+        long position = offset;
+        while (page.hasRemaining()) {
+            int read = channel.read(page, position);
+            if (read < 0) {
+                throw new EOFException("Node at offset " + offset + " extends past end of BTree file");
+            }
+            position += read;
+        }
+        page.flip();
+        BTreeNode node = new BTreeNode(t, offset, null);
+        node.decode(page);
+        return node;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Doubly-linked list of cache entries, linked through the entries themselves
+ * so adding, removing and moving an entry take constant time.
+ * The head is the most recently added end.
+ */
+public class EntryList {
+
+    private CacheEntry head; //most recently added entry
+    private CacheEntry tail; //least recently added entry
+    private int size; //number of entries in list
+
+    /**
+     * @return number of entries in list
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return most recently added entry, or null if empty
+     */
+    public CacheEntry first() {
+        return head;
+    }
+
+    /**
+     * @return least recently added entry, or null if empty
+     */
+    public CacheEntry last() {
+        return tail;
+    }
+
+    /**
+     * Add an entry at the head of the list
+     * @param entry --entry that isn't in any list
+     */
+    public void addFirst(CacheEntry entry) {
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        head = entry;
+        if (tail == null) {
+            tail = entry;
+        }
+        entry.list = this;
+        size++;
+    }
+
+    /**
+     * Add an entry just before another one (closer to the head)
+     * @param entry --entry that isn't in any list
+     * @param before --entry in this list, or null to add at the tail
+     */
+    public void addBefore(CacheEntry entry, CacheEntry before) {
+        if (before == null) {
+            entry.next = null;
+            entry.prev = tail;
+            if (tail != null) {
+                tail.next = entry;
+            }
+            tail = entry;
+            if (head == null) {
+                head = entry;
+            }
+        }
+        else {
+            entry.next = before;
+            entry.prev = before.prev;
+            if (before.prev != null) {
+                before.prev.next = entry;
+            }
+            else {
+                head = entry;
+            }
+            before.prev = entry;
+        }
+        entry.list = this;
+        size++;
+    }
+
+    /**
+     * Remove an entry from the list
+     * @param entry --entry in this list
+     */
+    public void remove(CacheEntry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        }
+        else {
+            head = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        else {
+            tail = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.list = null;
+        size--;
+    }
+
+    /**
+     * Remove the entry at the tail of the list
+     * @return removed entry, or null if empty
+     */
+    public CacheEntry removeLast() {
+        CacheEntry entry = tail;
+        if (entry != null) {
+            remove(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Move an entry in this list to the head
+     * @param entry --entry in this list
+     */
+    public void moveToFront(CacheEntry entry) {
+        if (head != entry) {
+            remove(entry);
+            addFirst(entry);
+        }
+    }
+
+}
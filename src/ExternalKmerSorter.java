@@ -0,0 +1,136 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Counts sequences within a fixed memory budget, however many distinct
+ * sequences there are. Counts are kept in a LongIntHashMap until it fills
+ * the budget; it is then sorted and written to a temporary run file of
+ * (long sequence, int count) records, and counting starts again. Once the
+ * input is finished the runs are merged with a RunMerger into one sorted
+ * stream, which can be written into a BTree sequentially.
+ */
+public class ExternalKmerSorter implements KmerSink {
+
+    private static final int BYTES_PER_KEY = 24; //a key and count, in tables kept at most half full
+    private static final int RUN_BUFFER_BYTES = 1 << 16; //write buffer for a run
+    private static final int MAX_MERGE_WIDTH = 128; //most runs open at once while merging
+
+    private LongIntHashMap counts; //sequence -> occurrences since the last spill
+    private int maxKeys; //number of distinct sequences the budget holds
+    private File directory; //where run files are written
+    private ArrayList<File> runs; //run files written so far
+
+    /**
+     * Constructor
+     * @param maxBytes --memory to use for counts (long)
+     * @param directory --directory to write temporary run files in (File)
+     */
+    public ExternalKmerSorter(long maxBytes, File directory) {
+        maxKeys = (int) Math.max(1, Math.min(1 << 29, maxBytes / BYTES_PER_KEY));
+        counts = new LongIntHashMap(Math.min(maxKeys, 1 << 16));
+        this.directory = directory;
+        runs = new ArrayList<File>();
+    }
+
+    /**
+     * Count one occurrence of a sequence, spilling the counts to a run first if the budget is full
+     * @param sequence (long)
+     */
+    public void add(long sequence) {
+        if (counts.size() >= maxKeys && counts.get(sequence, 0) == 0) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        counts.add(sequence, 1);
+    }
+
+    /**
+     * Write the counts so far to a new run file, in sorted order, and start counting again
+     * @throws IOException if the run can't be written
+     */
+    private void spill() throws IOException {
+        long keys[] = counts.keys();
+        Arrays.sort(keys);
+        DataOutputStream out = createRun();
+        try {
+            for (long key : keys) {
+                out.writeLong(key);
+                out.writeInt(counts.get(key, 0));
+            }
+        } finally {
+            out.close();
+        }
+        counts.clear();
+    }
+
+    /**
+     * Create a new, empty run file at the end of the list of runs
+     * @return stream to write the run's records to
+     * @throws IOException if the file can't be created
+     */
+    private DataOutputStream createRun() throws IOException {
+        File run = File.createTempFile("kmers", ".run", directory);
+        run.deleteOnExit();
+        runs.add(run);
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_BYTES));
+    }
+
+    /**
+     * Finish counting: spill what is left, and merge every run
+     * Can be called more than once to read the merged counts again
+     * @return merged counts, in sorted order
+     * @throws IOException if a run can't be written or read
+     */
+    public RunMerger merge() throws IOException {
+        if (counts.size() > 0 || runs.isEmpty()) {
+            spill();
+        }
+        //too many runs to open at once -- merge the oldest into one longer run until there are few enough
+        while (runs.size() > MAX_MERGE_WIDTH) {
+            File oldest[] = runs.subList(0, MAX_MERGE_WIDTH).toArray(new File[MAX_MERGE_WIDTH]);
+            runs.subList(0, MAX_MERGE_WIDTH).clear();
+            RunMerger merger = new RunMerger(oldest);
+            DataOutputStream out = createRun();
+            try {
+                while (merger.next()) {
+                    out.writeLong(merger.getKey());
+                    out.writeInt(merger.getCount());
+                }
+            } finally {
+                out.close();
+                merger.close();
+            }
+            for (File run : oldest) {
+                run.delete();
+            }
+        }
+        return new RunMerger(runs.toArray(new File[runs.size()]));
+    }
+
+    /**
+     * @return number of run files written
+     */
+    public int getRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Delete the run files
+     */
+    public void delete() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+}
@@ -1,7 +1,11 @@
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class GeneBankCreateBTree {
 
@@ -10,26 +14,68 @@ public class GeneBankCreateBTree {
      */
     public static void printUsage(){
         System.err.println("Usage:");
-        System.err.println("GeneBankCreateBTree <0/1 (no/with Cache)> <degree> <gbk file> <sequence length> <cache size> [<debug level>]");
+        System.err.println("GeneBankCreateBTree [options] <0/1 (no/with Cache)> <degree> <gbk file> <sequence length> <cache size> [<debug level>]");
         System.err.println("Cache: whether or not to use a cache");
         System.err.println("Degree: degree of BTree.  Choose 0 for optimum degree");
-        System.err.println("GBK file: name of file containing DNA sequence");
+        System.err.println("GBK file: name of file containing DNA sequence, a directory of .gbk (or .gbk.gz) files, or several of these separated by commas");
         System.err.println("Sequence length: length of subsequences to store, between 1 and 31 (inclusive)");
+        System.err.println("\tA list (7,12,20) or range (7-12) builds one BTree per length from a single pass over the input");
         System.err.println("Cache Size: size of the cache");
         System.err.println("Debug level (optional, defaults to 0): ");
         System.err.println("\t0 = help/status messages printed to stderr");
         System.err.println("\t1 = dump file containing keys and their frequency created");
+        System.err.println("Options:");
+        System.err.println("--cache-policy=<lru|clock|2q|arc>: cache eviction policy (default lru)");
+        System.err.println("--buffer-mb=<n>: keep up to n megabytes of encoded nodes in an off-heap buffer pool");
+        System.err.println("--count-mb=<n>: count sequences in up to n megabytes of memory, inserting each distinct one once per flush");
+        System.err.println("--bulk-load: count and sort the sequences first, then write the BTree bottom-up in one pass");
+        System.err.println("--external-mb=<n>: count in n megabytes, spilling sorted runs to disk, then merge them and write the BTree sequentially");
+        System.err.println("--canonical: store each sequence and its reverse complement as one key, the smaller of the two");
+        System.err.println("--subtree-sums: store the total frequency under each child in every node, for fast prefix and range totals");
+        System.err.println("--top-index=<n>: also write the n most frequent sequences to <btree file>.top, for GeneBankSearch --top");
+        System.err.println("--append: add the sequences to an existing BTree, in sorted batches, instead of creating a new one");
+        System.err.println("--threads=<n>: count the sequences on n threads, splitting the input by record and file (not with --count-mb or --external-mb)");
+        System.err.println("\tgzip-compressed input is read directly; a lone BGZF file is decompressed on n threads");
     }
 
     public static void main(String args[]){
 
+        //separate optional flags from positional arguments
+        Options options = new Options(args);
+        if (!options.onlyKnown("cache-policy", "buffer-mb", "count-mb", "bulk-load", "threads", "canonical", "append", "external-mb", "subtree-sums", "top-index")){
+            printUsage();
+            return;
+        }
+        args = options.getPositional();
+        int bufferMb;   //size of buffer pool, 0 if not used
+        int countMb;    //memory for counting sequences before they are inserted, 0 if not counted
+        int externalMb; //memory for counting before sorted runs are spilled to disk, 0 if not used
+        int threads;    //threads to count sequences on
+        int topIndex;   //number of most frequent sequences to index, 0 for no index
+        try {
+            bufferMb = options.getInt("buffer-mb", 0);
+            countMb = options.getInt("count-mb", 0);
+            externalMb = options.getInt("external-mb", 0);
+            threads = options.getInt("threads", 1);
+            topIndex = options.getInt("top-index", 0);
+        } catch (NumberFormatException e){
+            printUsage();
+            return;
+        }
+        boolean append = options.has("append");
+        //threaded counting holds every count in memory, which the memory bounds of --count-mb and --external-mb rule out
+        if (threads < 1 || topIndex < 0 || (append && options.has("bulk-load"))
+                || (threads > 1 && (countMb > 0 || externalMb > 0))){
+            printUsage();
+            return;
+        }
+
         int degree; //degree of BTree
         String gbk; //Name of gbk file to parse sequence from
-        int k; //length of sequences
+        int lengths[]; //lengths of sequences, one BTree is built for each
         int debug = 0; //0 or 1
         int cacheOption; //0 or 1
         int cacheSize = 0; //size of cache, if being used
-        Cache cache = null;
 
         //check for wrong number of arguments
         if (args.length < 4 || args.length > 6){
@@ -41,7 +87,7 @@ public class GeneBankCreateBTree {
             cacheOption = Integer.parseInt(args[0]);
             degree = Integer.parseInt(args[1]);
             gbk = args[2];
-            k = Integer.parseInt(args[3]);
+            lengths = parseLengths(args[3]);
             if (cacheOption == 1){
                 cacheSize = Integer.parseInt(args[4]);
                 if (args.length == 6){
@@ -63,6 +109,13 @@ public class GeneBankCreateBTree {
             return;
         }
 
+        boolean subtreeSums = options.has("subtree-sums");
+        if (degree == 0 && subtreeSums){
+            //as below, plus 2t longs for the subtree sums
+            //56t + 88 = 4096
+            //t = 71.6, round down to 71
+            degree = 71;
+        }
         if (degree == 0){
             //set to optimal degree for disk with block size 4096
             //this will need to be calculated after we've decided exactly what variables to store
@@ -81,53 +134,248 @@ public class GeneBankCreateBTree {
             degree = 100;
         }
 
-        if (k < 1 || k > 31){
+        if (lengths == null){
             printUsage();
             return;
         }
 
-        //build filename to store BTree in
-        String filename = gbk + ".btree.data." + k + "." + degree;
-        //open a RandomAccessFile
-        RandomAccessFile file;
-        try {
-            file = new RandomAccessFile(filename, "rw");
-        } catch (FileNotFoundException e){
-            System.err.println("Couldn't create BTree data file " + filename);
+        //find the gbk files to read, and build filename to store BTree in from the first path given
+        String inputs[] = listInputs(gbk);
+        if (inputs.length == 0){
+            System.err.println("No gbk files found in " + gbk);
             return;
         }
+        String base = new File(gbk.split(",")[0]).getPath();
+        int n = lengths.length;
+        String filenames[] = new String[n];
+        RandomAccessFile files[] = new RandomAccessFile[n];
+        @SuppressWarnings("unchecked")
+        Cache<BTreeNode> caches[] = (Cache<BTreeNode>[]) new Cache<?>[n];
+        BufferPool pools[] = new BufferPool[n];
+        BTree trees[] = new BTree[n];
+        BTreeNode roots[] = new BTreeNode[n];
+        boolean canonical = options.has("canonical");
+        for (int i = 0; i < n; i++){
+            //build filename to store BTree in
+            filenames[i] = base + ".btree.data." + lengths[i] + "." + degree;
+            //open a RandomAccessFile
+            try {
+                files[i] = new RandomAccessFile(filenames[i], "rw");
+                if (append && files[i].length() > 0){
+                    //keep the existing tree and start from its root
+                    roots[i] = openRoot(files[i], filenames[i], degree, canonical, subtreeSums);
+                    if (roots[i] == null){
+                        return;
+                    }
+                }
+                else {
+                    files[i].setLength(0);  //discard any tree left over from an earlier run
+                }
+            } catch (FileNotFoundException e){
+                System.err.println("Couldn't create BTree data file " + filenames[i]);
+                return;
+            } catch (IOException e){
+                System.err.println("Couldn't clear BTree data file " + filenames[i]);
+                return;
+            }
 
-        //initialize cache, if used
-        if (cacheOption == 1) {
-            cache = new Cache<BTreeNode>(cacheSize);
-        }
+            //initialize cache, if used
+            if (cacheOption == 1) {
+                CachePolicy policy = CachePolicy.forName(options.get("cache-policy", "lru"), cacheSize);
+                if (policy == null){
+                    printUsage();
+                    return;
+                }
+                caches[i] = new Cache<BTreeNode>(cacheSize, policy);
+            }
 
-        //initialize BTree with null root
-        BTree tree = new BTree(degree, file, null, cache);
+            //initialize BTree with null root, or the existing root when appending
+            //(a bulk load replaces it with the tree it builds)
+            trees[i] = new BTree(degree, files[i], roots[i], caches[i]);
+            trees[i].setSubtreeSums(subtreeSums);
+            if (bufferMb > 0){
+                pools[i] = new BufferPool(files[i], degree, subtreeSums, (long) bufferMb * 1024 * 1024);
+                trees[i].setBufferPool(pools[i]);
+            }
+        }
 
-        //initialize input parser
-        InputParser parser = new InputParser(k);
+        //initialize input parser, for every length at once
+        InputParser parser = new InputParser(lengths);
+        parser.setCanonical(canonical);
+        parser.setThreads(threads);
+        KmerSink sinks[] = new KmerSink[n];
 
-        System.out.println("Inserting sequences...");
-        //parse files and add them to the BTree
+        //parse files and add them to the BTrees
         try {
-            parser.parseFile(gbk, tree);
+            if (externalMb > 0){
+                System.out.println("Sorting sequences into runs...");
+                File directory = new File(filenames[0]).getAbsoluteFile().getParentFile();
+                ExternalKmerSorter sorters[] = new ExternalKmerSorter[n];
+                for (int i = 0; i < n; i++){
+                    sorters[i] = new ExternalKmerSorter((long) externalMb * 1024 * 1024, directory);
+                    sinks[i] = sorters[i];
+                }
+                for (String input : inputs){
+                    parser.parseFile(input, sinks);
+                }
+                for (int i = 0; i < n; i++){
+                    trees[i] = externalLoad(sorters[i], trees[i], degree, subtreeSums, files[i], caches[i]);
+                    if (pools[i] != null){
+                        trees[i].setBufferPool(pools[i]);
+                    }
+                }
+            }
+            //appending merges counts into the existing tree in sorted order, using --count-mb batches if given
+            else if (options.has("bulk-load") || threads > 1 || (append && countMb == 0)){
+                System.out.println("Counting sequences...");
+                LongIntHashMap counts[] = ParallelCounter.count(inputs, lengths, canonical, threads);
+                for (int i = 0; i < n; i++){
+                    long keys[] = counts[i].keys();
+                    Arrays.sort(keys);
+                    if (options.has("bulk-load")){
+                        trees[i] = bulkLoad(counts[i], keys, degree, subtreeSums, files[i], caches[i]);
+                        if (pools[i] != null){
+                            trees[i].setBufferPool(pools[i]);
+                        }
+                    }
+                    else {
+                        System.out.println("Inserting " + keys.length + " distinct sequences...");
+                        for (long key : keys){
+                            trees[i].insertSorted(key, counts[i].get(key, 0));
+                        }
+                    }
+                    counts[i] = null;   //done with these counts
+                }
+            }
+            else if (countMb > 0){
+                System.out.println("Counting and inserting sequences...");
+                long inputLength = 0;
+                for (String input : inputs){
+                    inputLength += new File(input).length();
+                }
+                KmerCounter counters[] = new KmerCounter[n];
+                for (int i = 0; i < n; i++){
+                    counters[i] = new KmerCounter(trees[i], lengths[i], inputLength, (long) countMb * 1024 * 1024);
+                    sinks[i] = counters[i];
+                }
+                for (String input : inputs){
+                    parser.parseFile(input, sinks);
+                }
+                for (KmerCounter counter : counters){
+                    counter.flush();
+                    System.out.println("Counts flushed into BTree " + counter.getFlushes() + " time(s)");
+                }
+            }
+            else {
+                System.out.println("Inserting sequences...");
+                for (int i = 0; i < n; i++){
+                    sinks[i] = trees[i]::insert;
+                }
+                for (String input : inputs){
+                    parser.parseFile(input, sinks);
+                }
+            }
         } catch (FileNotFoundException e){
             System.err.println("gbk file could not be found");
             printUsage();
             return;
+        } catch (UncheckedIOException e){
+            System.err.println("Problems writing sorted runs: " + e.getCause().getMessage());
+            return;
         } catch (Exception e){
             System.err.println("No DNA sequence present in file");
         }
 
+        for (int i = 0; i < n; i++){
+            if (n > 1){
+                System.out.println("Finishing " + filenames[i] + "...");
+            }
+            //with several lengths, each gets its own dump file
+            String dumpName = (debug == 1) ? ((n > 1) ? "dump." + lengths[i] : "dump") : null;
+            finish(trees[i], caches[i], pools[i], filenames[i], degree, canonical, subtreeSums, lengths[i], dumpName, topIndex);
+        }
+
+    }
+
+    /**
+     * Read the root of an existing BTree, to append to it
+     * @param file --BTree data file
+     * @param filename --name of BTree data file (String)
+     * @param degree --degree the BTree should have (int)
+     * @param canonical --true if keys will be stored canonically, which must match the existing tree (boolean)
+     * @param subtreeSums --true if nodes will store subtree sums, which must match the existing tree (boolean)
+     * @return root node, or null if the BTree can't be appended to
+     */
+    private static BTreeNode openRoot(RandomAccessFile file, String filename, int degree, boolean canonical, boolean subtreeSums){
+        BTreeMetadata meta;
+        try {
+            meta = BTreeMetadata.read(filename);
+        } catch (FileNotFoundException e){
+            System.err.println("Metadata for " + filename + " could not be found");
+            return null;
+        } catch (IOException e){
+            System.err.println("Metadata for " + filename + " could not be read");
+            return null;
+        }
+        if (meta.getDegree() != degree){
+            System.err.println(filename + " has degree " + meta.getDegree() + ", not " + degree);
+            return null;
+        }
+        if (meta.isCanonical() != canonical){
+            System.err.println(filename + " was built " + (meta.isCanonical() ? "with" : "without")
+                    + " --canonical; append with the same options");
+            return null;
+        }
+        if (meta.hasSubtreeSums() != subtreeSums){
+            System.err.println(filename + " was built " + (meta.hasSubtreeSums() ? "with" : "without")
+                    + " --subtree-sums; append with the same options");
+            return null;
+        }
+        BTreeNode root = new BTreeNode(degree, meta.getRootOffset(), file, null, subtreeSums);
+        try {
+            root.readNode(meta.getRootOffset());
+        } catch (IOException e){
+            System.err.println("Could not read root node of " + filename);
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Write out a finished BTree: flush changed nodes, print statistics,
+     * record metadata, and write the top index and dump file if they are wanted
+     * @param tree --BTree to finish
+     * @param cache --tree's cache (null if not used)
+     * @param pool --tree's buffer pool (null if not used)
+     * @param filename --name of BTree data file (String)
+     * @param degree --degree of BTree (int)
+     * @param canonical --true if keys were stored canonically (boolean)
+     * @param subtreeSums --true if nodes store subtree sums (boolean)
+     * @param k --length of sequences in tree (int)
+     * @param dumpName --name of dump file (null for no dump)
+     * @param topIndex --number of most frequent sequences to write to the top index (0 for none)
+     */
+    private static void finish(BTree tree, Cache<BTreeNode> cache, BufferPool pool, String filename, int degree, boolean canonical, boolean subtreeSums, int k, String dumpName, int topIndex){
+        //write back nodes that are still only changed in memory
+        try {
+            tree.flush();
+        } catch (IOException e){
+            System.err.println("Problems writing BTree data file");
+            return;
+        }
+
+        if (cache != null){
+            System.out.println(cache.getStatistics());
+        }
+        if (pool != null){
+            System.out.println(pool.getStatistics());
+        }
+
         //BTree has been written at this point
         //Record metadata
         System.out.println("Recording metadata...");
-        RandomAccessFile meta;
         try {
-            meta = new RandomAccessFile(filename + ".metadata", "rw");
-            meta.writeLong(tree.getRoot().getOffset());
-            meta.writeInt(degree);
+            new BTreeMetadata(tree.getRoot().getOffset(), degree, canonical, subtreeSums).write(filename);
         } catch (FileNotFoundException e){
             System.err.println("Could not create BTree metadata file");
             return;
@@ -135,12 +383,28 @@ public class GeneBankCreateBTree {
             System.err.println("Problems writing to BTree metadata file");
         }
 
-        if (debug == 1) {
+        //write the top index, or remove one left by an earlier run, which no longer matches the tree
+        File index = new File(filename + ".top");
+        if (topIndex > 0){
+            System.out.println("Writing top " + topIndex + " index...");
+            try {
+                TopFrequencies top = new TopFrequencies(topIndex);
+                BTree.scanNodes(tree.file, degree, subtreeSums, top);
+                top.write(index.getPath());
+            } catch (IOException e){
+                System.err.println("Problems writing top index");
+            }
+        }
+        else if (index.exists()){
+            index.delete();
+        }
+
+        if (dumpName != null) {
             //create dump file
             try {
                 //RandomAccessFile dump = new RandomAccessFile("dump", "rw");
-                PrintWriter dump = new PrintWriter("dump");
-                tree.traverse(dump, parser, tree.getRoot(), tree.getRoot().getOffset());
+                PrintWriter dump = new PrintWriter(dumpName);
+                tree.traverse(dump, new InputParser(k), tree.getRoot().getOffset());
                 dump.flush();
                 dump.close();
             } catch (FileNotFoundException e) {
@@ -151,7 +415,136 @@ public class GeneBankCreateBTree {
             }
 
         }
+    }
+
+    /**
+     * Read the sequence length argument: a single length, or a list of
+     * lengths and ranges of lengths separated by commas (e.g. 7,12,20-22)
+     * @param arg --sequence length argument (String)
+     * @return distinct lengths, in increasing order, or null if any is outside 1 to 31
+     * @throws NumberFormatException if a length isn't a number
+     */
+    private static int[] parseLengths(String arg){
+        boolean wanted[] = new boolean[32];
+        for (String part : arg.split(",")){
+            int dash = part.indexOf('-', 1);
+            int low = Integer.parseInt((dash == -1) ? part : part.substring(0, dash));
+            int high = (dash == -1) ? low : Integer.parseInt(part.substring(dash + 1));
+            if (low < 1 || high > 31 || low > high){
+                return null;
+            }
+            for (int k = low; k <= high; k++){
+                wanted[k] = true;
+            }
+        }
+        int count = 0;
+        for (boolean w : wanted){
+            if (w){
+                count++;
+            }
+        }
+        int lengths[] = new int[count];
+        count = 0;
+        for (int k = 1; k < wanted.length; k++){
+            if (wanted[k]){
+                lengths[count++] = k;
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Build a BTree from the sorted runs of an ExternalKmerSorter. The runs
+     * are merged twice: once to count the distinct sequences, which the
+     * BTreeBulkLoader needs first, and once to write them. When appending,
+     * the merged counts are inserted into the existing tree in sorted order.
+     * Either way the runs are only read sequentially.
+     * @param sorter --sorter the input was counted into
+     * @param tree --BTree being built (with a root if appending)
+     * @param degree --degree of BTree (int)
+     * @param subtreeSums --true to store the total frequency under each child (boolean)
+     * @param file --file to write BTree into
+     * @param cache --cache for the finished tree (null if not used)
+     * @return finished BTree
+     * @throws IOException if a run can't be read or the BTree can't be written
+     */
+    private static BTree externalLoad(ExternalKmerSorter sorter, BTree tree, int degree, boolean subtreeSums, RandomAccessFile file, Cache<BTreeNode> cache) throws IOException {
+        RunMerger merger = sorter.merge();
+        System.out.println("Merging " + sorter.getRuns() + " sorted run(s)...");
+        try {
+            if (tree.getRoot() != null){
+                while (merger.next()){
+                    tree.insertSorted(merger.getKey(), merger.getCount());
+                }
+                return tree;
+            }
+            long distinct = 0;
+            while (merger.next()){
+                distinct++;
+            }
+            merger.close();
+
+            System.out.println("Writing " + distinct + " distinct sequences...");
+            BTreeBulkLoader loader = new BTreeBulkLoader(degree, file, distinct, subtreeSums);
+            merger = sorter.merge();
+            while (merger.next()){
+                loader.add(merger.getKey(), merger.getCount());
+            }
+            BTree loaded = new BTree(degree, file, loader.finish(), cache);
+            loaded.setSubtreeSums(subtreeSums);
+            return loaded;
+        } finally {
+            merger.close();
+            sorter.delete();
+        }
+    }
 
+    /**
+     * Find the gbk files named by the gbk file argument
+     * @param gbk --a file, a directory of .gbk (or .gbk.gz) files, or several of these separated by commas (String)
+     * @return names of files to read
+     */
+    private static String[] listInputs(String gbk){
+        ArrayList<String> inputs = new ArrayList<String>();
+        for (String path : gbk.split(",")){
+            File file = new File(path);
+            if (file.isDirectory()){
+                String names[] = file.list();
+                Arrays.sort(names);
+                for (String name : names){
+                    if (name.endsWith(".gbk") || name.endsWith(".gbk.gz")){
+                        inputs.add(new File(file, name).getPath());
+                    }
+                }
+            }
+            else if (!path.isEmpty()){
+                inputs.add(path);
+            }
+        }
+        return inputs.toArray(new String[inputs.size()]);
+    }
+
+    /**
+     * Build the BTree bottom-up: add every distinct sequence, in sorted
+     * order, to a BTreeBulkLoader, which writes each node once, sequentially.
+     * @param counts --sequence -> number of times it occurs
+     * @param keys --every sequence in counts, sorted (long[])
+     * @param degree --degree of BTree (int)
+     * @param subtreeSums --true to store the total frequency under each child (boolean)
+     * @param file --empty file to write BTree into
+     * @param cache --cache for the finished tree (null if not used)
+     * @return finished BTree
+     * @throws IOException if the BTree can't be written
+     */
+    private static BTree bulkLoad(LongIntHashMap counts, long keys[], int degree, boolean subtreeSums, RandomAccessFile file, Cache<BTreeNode> cache) throws IOException {
+        System.out.println("Writing " + keys.length + " distinct sequences...");
+        BTreeBulkLoader loader = new BTreeBulkLoader(degree, file, keys.length, subtreeSums);
+        for (long key : keys){
+            loader.add(key, counts.get(key, 0));
+        }
+        BTree loaded = new BTree(degree, file, loader.finish(), cache);
+        loaded.setSubtreeSums(subtreeSums);
+        return loaded;
     }
 
 }
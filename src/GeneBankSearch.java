@@ -2,7 +2,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GeneBankSearch {
 
@@ -11,17 +17,75 @@ public class GeneBankSearch {
      */
     public static void printUsage(){
         System.err.println("Usage: ");
-        System.err.println("GeneBankSearch <0/1 (no/with Cache)> <btree file> <query file> <cache size> [<debug level>]");
+        System.err.println("GeneBankSearch [options] <0/1 (no/with Cache)> <btree file> <query file> <cache size> [<debug level>]");
+        System.err.println("GeneBankSearch --top=<n> <btree file>");
         System.err.println("Cache: whether or not to use a cache");
         System.err.println("BTree file: file BTree is stored in");
         System.err.println("Query file: file containing sequences to search for");
+        System.err.println("    a line may also be a prefix (ACG*) or a range (AAAC-AGTT), answered with every stored sequence in it and their total");
         System.err.println("Cache Size: size of the cache");
         System.err.println("Debug level (optional): defaults to 0");
         System.err.println("\t0 = Query results output to stdout, errors and status messages to stderr");
+        System.err.println("Options:");
+        System.err.println("--mmap: memory-map the BTree file and search it read-only (cache is not used, not with --pin-*, --buffer-mb)");
+        System.err.println("--cache-policy=<lru|clock|2q|arc>: cache eviction policy (default lru)");
+        System.err.println("--pin-levels=<n>: keep the top n levels of the BTree in memory");
+        System.err.println("--pin-mb=<n>: keep as many whole top levels in memory as fit in n megabytes");
+        System.err.println("--buffer-mb=<n>: keep up to n megabytes of encoded nodes in an off-heap buffer pool");
+        System.err.println("--batch: read every query first and answer them all in one sorted descent of the BTree (not with --mmap or a cache)");
+        System.err.println("--totals: answer prefix and range queries with only their total, read from subtree sums if the BTree has them");
+        System.err.println("--top=<n>: print the n most frequent sequences in the BTree, from its top index if it has a large enough one");
+        System.err.println("--threads=<n>: answer queries on n threads, sharing a thread-safe reader (not with --batch, --pin-*, --buffer-mb)");
     }
 
     public static void main(String args[]){
 
+        //separate optional flags from positional arguments
+        Options options = new Options(args);
+        if (!options.onlyKnown("mmap", "cache-policy", "pin-levels", "pin-mb", "buffer-mb", "batch", "threads", "totals", "top")){
+            printUsage();
+            return;
+        }
+        boolean mmap = options.has("mmap");
+        boolean batch = options.has("batch");
+        boolean totals = options.has("totals");
+        if (mmap && batch){
+            printUsage();
+            return;
+        }
+        int pinLevels;  //number of top levels to pin, 0 if no limit
+        int pinMb;  //memory budget for pinned levels, 0 if no limit
+        int bufferMb;   //size of buffer pool, 0 if not used
+        int threads;    //threads to answer queries on
+        int top;    //number of most frequent sequences to print, 0 to answer a query file
+        try {
+            pinLevels = options.getInt("pin-levels", 0);
+            pinMb = options.getInt("pin-mb", 0);
+            bufferMb = options.getInt("buffer-mb", 0);
+            threads = options.getInt("threads", 1);
+            top = options.getInt("top", 0);
+        } catch (NumberFormatException e){
+            printUsage();
+            return;
+        }
+        //the BTree class, its cache, pins and buffer pool are for one thread only,
+        //and a memory-mapped BTree doesn't use them at all
+        if (threads < 1 || ((threads > 1 || mmap) && (pinLevels > 0 || pinMb > 0 || bufferMb > 0))
+                || (threads > 1 && batch)){
+            printUsage();
+            return;
+        }
+        args = options.getPositional();
+        if (top != 0){
+            //only the BTree file is needed
+            if (top < 0 || args.length != 1){
+                printUsage();
+                return;
+            }
+            printTop(args[0], top);
+            return;
+        }
+
         //check for wrong number of arguments
         if (args.length < 3 || args.length > 5){
             printUsage();
@@ -64,15 +128,16 @@ public class GeneBankSearch {
             printUsage();
             return;
         }
+        //a batch reads each node at most once, so a cache could never hit
+        if (batch && (cacheOption == 1 || options.has("cache-policy"))){
+            printUsage();
+            return;
+        }
 
         //Read the Btree
-        RandomAccessFile meta;
-        long rootOffset;
-        int degree;
+        BTreeMetadata meta;
         try {
-            meta = new RandomAccessFile(btreefile + ".metadata", "r");
-            rootOffset = meta.readLong();
-            degree = meta.readInt();
+            meta = BTreeMetadata.read(btreefile);
         } catch (FileNotFoundException e){
             System.err.println("Metadata for given BTree could not be found");
             printUsage();
@@ -81,6 +146,9 @@ public class GeneBankSearch {
             System.err.println("Metadata for given BTree could not be read");
             return;
         }
+        long rootOffset = meta.getRootOffset();
+        int degree = meta.getDegree();
+        boolean subtreeSums = meta.hasSubtreeSums();  //nodes hold the total frequency under each child
         RandomAccessFile btree;
         try {
             btree = new RandomAccessFile(btreefile, "r");
@@ -89,20 +157,64 @@ public class GeneBankSearch {
             printUsage();
             return;
         }
-        BTreeNode root = new BTreeNode(degree, rootOffset, btree, cache);
-        try {
-            root.readNode(rootOffset);
-        } catch (IOException e){
-            System.err.println("Could not read root node");
-            return;
+        BTree tree = null;
+        BTreeNode root = null;
+        MappedBTree mapped = null;
+        ConcurrentBTreeReader reader = null;
+        BufferPool pool = null;
+        if (mmap){
+            try {
+                mapped = new MappedBTree(degree, btree, rootOffset);
+            } catch (IOException e){
+                System.err.println("Could not memory-map BTree file");
+                return;
+            }
         }
-
-        //initialize cache, if used
-        if (cacheOption == 1) {
-            cache = new Cache<BTreeNode>(cacheSize);
+        else if (threads > 1){
+            try {
+                reader = new ConcurrentBTreeReader(degree, btree, rootOffset, cacheSize);
+            } catch (IOException e){
+                System.err.println("Could not read root node");
+                return;
+            }
         }
+        else {
+            root = new BTreeNode(degree, rootOffset, btree, null, subtreeSums);
+            try {
+                root.readNode(rootOffset);
+            } catch (IOException e){
+                System.err.println("Could not read root node");
+                return;
+            }
+
+            //initialize cache, if used
+            if (cacheOption == 1) {
+                CachePolicy policy = CachePolicy.forName(options.get("cache-policy", "lru"), cacheSize);
+                if (policy == null){
+                    printUsage();
+                    return;
+                }
+                cache = new Cache<BTreeNode>(cacheSize, policy);
+            }
 
-        BTree tree = new BTree(degree, btree ,root, cache);
+            tree = new BTree(degree, btree ,root, cache);
+            tree.setSubtreeSums(subtreeSums);
+            if (bufferMb > 0){
+                pool = new BufferPool(btree, degree, subtreeSums, (long) bufferMb * 1024 * 1024);
+                tree.setBufferPool(pool);
+            }
+
+            //pin the upper levels of the tree, if asked to
+            if (pinLevels > 0 || pinMb > 0){
+                try {
+                    int levels = tree.pinLevels(pinLevels, (long) pinMb * 1024 * 1024);
+                    System.err.println("Pinned " + tree.getPinnedCount() + " nodes in " + levels + " levels");
+                } catch (IOException e){
+                    System.err.println("Could not read upper levels of BTree");
+                    return;
+                }
+            }
+        }
 
         //open a scanner on query file
         Scanner scan;
@@ -119,37 +231,377 @@ public class GeneBankSearch {
         int k = line.length();
 
         //check that subsequence length equals BTree subsequence length
-        int endbtreek = btreefile.lastIndexOf('.');
-        int beginbtreek = endbtreek - 2;
-        if (btreefile.charAt(beginbtreek) ==  '.'){
-            beginbtreek++;
-        }
-        String btreek = btreefile.substring(beginbtreek, endbtreek);
-        int btreeK = Integer.parseInt(btreek);
-        if (k != btreeK){
+        int btreeK = sequenceLength(btreefile);
+        if (!isRangeQuery(line) && k != btreeK){
             System.err.println("Query file subsequence length doesn't match given BTree");
             printUsage();
             return;
         }
+        k = btreeK;
 
         //Create an InputParser based on given length
         InputParser parser = new InputParser(k);
+        boolean canonical = meta.isCanonical();  //look sequences up the way they were stored
 
-        //parse and search for first sequence
-        long frequency = tree.search(parser.stringToBinary(line), root);
-        System.out.println(frequency + "\t" + line);
+        if (threads > 1){
+            searchParallel(mapped, reader, parser, canonical, line, scan, threads);
+            if (reader != null){
+                System.err.println(reader.getStatistics());
+            }
+            return;
+        }
+        if (batch){
+            searchBatch(tree, parser, canonical, line, scan);
+            if (pool != null){
+                System.err.println(pool.getStatistics());
+            }
+            return;
+        }
 
-        //parse and search for each other sequence
-        while(scan.hasNextLine()){
+        //parse and search for each sequence
+        while (true){
+            if (isRangeQuery(line)){
+                if (canonical){
+                    System.err.println("Prefix and range queries can't be answered from a BTree of canonical sequences");
+                    return;
+                }
+                long range[] = parseRange(line, parser, k);
+                if (range == null){
+                    System.err.println("Invalid query: " + line);
+                    return;
+                }
+                try {
+                    if (totals){
+                        long total = (mapped == null) ? tree.sum(range[0], range[1])
+                                : (subtreeSums) ? mapped.sum(range[0], range[1]) : scanTotal(mapped, range[0], range[1]);
+                        System.out.println(total + "\t" + line);
+                    }
+                    else {
+                        searchRange(tree, mapped, parser, range[0], range[1], line);
+                    }
+                } catch (IOException e){
+                    System.err.println(e.getMessage());
+                    return;
+                }
+            }
+            else {
+                if (line.length() != k){
+                    System.err.println("Invalid query file: all lines must be same length");
+                    return;
+                }
+                long key = parser.stringToBinary(line);
+                if (canonical){
+                    key = parser.canonical(key);
+                }
+                long frequency = (mmap) ? mapped.search(key) : tree.search(key, root);
+                System.out.println(frequency + "\t" + line);
+            }
+            if (!scan.hasNextLine()){
+                break;
+            }
             line = scan.nextLine();
-            if (line.length() != k){
+        }
+
+        if (cache != null){
+            System.err.println(cache.getStatistics());
+        }
+        if (pool != null){
+            System.err.println(pool.getStatistics());
+        }
+    }
+
+    /**
+     * Print the n most frequent sequences in a BTree, most frequent first.
+     * They are read from the top index written with the BTree if it holds
+     * at least n; otherwise every node of the BTree file is read in order,
+     * front to back, and each key is offered to a bounded min-heap.
+     * @param btreefile --file BTree is stored in (String)
+     * @param n --number of sequences to print (int)
+     */
+    private static void printTop(String btreefile, int n){
+        BTreeMetadata meta;
+        try {
+            meta = BTreeMetadata.read(btreefile);
+        } catch (FileNotFoundException e){
+            System.err.println("Metadata for given BTree could not be found");
+            printUsage();
+            return;
+        } catch (IOException e){
+            System.err.println("Metadata for given BTree could not be read");
+            return;
+        }
+        TopFrequencies top;
+        try {
+            top = TopFrequencies.read(btreefile + ".top", n);
+            if (top == null){
+                RandomAccessFile btree = new RandomAccessFile(btreefile, "r");
+                top = new TopFrequencies(n);
+                BTree.scanNodes(btree, meta.getDegree(), meta.hasSubtreeSums(), top);
+                btree.close();
+            }
+        } catch (FileNotFoundException e){
+            System.err.println("BTree file not found");
+            printUsage();
+            return;
+        } catch (IOException e){
+            System.err.println(e.getMessage());
+            return;
+        }
+        InputParser parser = new InputParser(sequenceLength(btreefile));
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < top.size(); i++){
+            out.append(top.getFrequency(i)).append('\t').append(parser.longToSequence(top.getKey(i))).append('\n');
+        }
+        System.out.print(out);
+    }
+
+    /**
+     * @param btreefile --name of BTree file, ending in .<sequence length>.<degree> (String)
+     * @return length of the sequences stored in it
+     */
+    private static int sequenceLength(String btreefile){
+        int endbtreek = btreefile.lastIndexOf('.');
+        int beginbtreek = endbtreek - 2;
+        if (btreefile.charAt(beginbtreek) ==  '.'){
+            beginbtreek++;
+        }
+        return Integer.parseInt(btreefile.substring(beginbtreek, endbtreek));
+    }
+
+    /**
+     * Answer every query in one pass over the BTree: the queries are read,
+     * sorted and searched for together with BTree.searchBatch, so each node
+     * is read at most once, then printed in the order they were given
+     * @param tree --BTree to search
+     * @param parser --InputParser for the query length
+     * @param canonical --true if the BTree stores canonical sequences (boolean)
+     * @param first --first query, already read (String)
+     * @param scan --Scanner on the rest of the query file
+     */
+    private static void searchBatch(BTree tree, InputParser parser, boolean canonical, String first, Scanner scan){
+        ArrayList<String> lines = readQueries(first, scan);
+        if (lines == null){
+            return;
+        }
+        long keys[] = toKeys(lines, parser, canonical);
+        //sort the distinct sequences, so each is searched for once
+        long sorted[] = keys.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++){
+            if (i == 0 || sorted[i] != sorted[i - 1]){
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        sorted = Arrays.copyOf(sorted, distinct);
+        int frequencies[] = new int[distinct];
+        try {
+            tree.searchBatch(sorted, frequencies);
+        } catch (IOException e){
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        //print the results in the original order
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < keys.length; i++){
+            out.append(frequencies[Arrays.binarySearch(sorted, keys[i])]).append('\t').append(lines.get(i)).append('\n');
+        }
+        System.out.print(out);
+    }
+
+    /**
+     * Answer the queries on several threads. The queries are read, split
+     * into slices, and each slice is searched for by a worker of a thread
+     * pool, through a reader every thread can use at once; the results are
+     * printed in the order of the query file.
+     * @param mapped --memory-mapped BTree (null if reader is used)
+     * @param reader --thread-safe reader of BTree (null if mapped is used)
+     * @param parser --InputParser for the query length
+     * @param canonical --true if the BTree stores canonical sequences (boolean)
+     * @param first --first query, already read (String)
+     * @param scan --Scanner on the rest of the query file
+     * @param threads --number of threads (int)
+     */
+    private static void searchParallel(MappedBTree mapped, ConcurrentBTreeReader reader, InputParser parser, boolean canonical,
+                                       String first, Scanner scan, int threads){
+        ArrayList<String> lines = readQueries(first, scan);
+        if (lines == null){
+            return;
+        }
+        long keys[] = toKeys(lines, parser, canonical);
+        long frequencies[] = new long[keys.length];
+
+        //several slices per thread, so a thread that finishes early can take another
+        int slices = Math.min(keys.length, threads * 4);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+        for (int s = 0; s < slices; s++){
+            int from = (int) ((long) keys.length * s / slices);
+            int to = (int) ((long) keys.length * (s + 1) / slices);
+            results.add(workers.submit(() -> {
+                for (int i = from; i < to; i++){
+                    frequencies[i] = (mapped != null) ? mapped.search(keys[i]) : reader.search(keys[i]);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> result : results){
+                result.get();
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e){
+            System.err.println(e.getCause().getMessage());
+            return;
+        } finally {
+            workers.shutdown();
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < keys.length; i++){
+            out.append(frequencies[i]).append('\t').append(lines.get(i)).append('\n');
+        }
+        System.out.print(out);
+    }
+
+    /**
+     * Print every sequence of a prefix or range query that is in the BTree,
+     * with its frequency, in increasing order, then the total frequency of
+     * the query. The BTree is descended once to the start of the range and
+     * walked in order from there.
+     * @param tree --BTree to search (null if mapped is used)
+     * @param mapped --memory-mapped BTree (null if tree is used)
+     * @param parser --InputParser for the query length
+     * @param low --smallest sequence in the range (long)
+     * @param high --largest sequence in the range (long)
+     * @param query --query as given (String)
+     * @throws IOException if a node can't be read
+     */
+    private static void searchRange(BTree tree, MappedBTree mapped, InputParser parser, long low, long high, String query) throws IOException {
+        StringBuilder out = new StringBuilder();
+        long total[] = new long[1];
+        KeyVisitor visitor = (sequence, frequency) -> {
+            out.append(frequency).append('\t').append(parser.longToSequence(sequence)).append('\n');
+            total[0] += frequency;
+        };
+        if (mapped != null){
+            mapped.scan(low, high, visitor);
+        }
+        else {
+            tree.scan(low, high, visitor);
+        }
+        out.append(total[0]).append('\t').append(query);
+        System.out.println(out);
+    }
+
+    /**
+     * Total frequency of every sequence from low to high, visiting each,
+     * for a memory-mapped BTree without subtree sums
+     * @param mapped --memory-mapped BTree
+     * @param low --smallest sequence in the range (long)
+     * @param high --largest sequence in the range (long)
+     * @return sum of the frequencies in the range
+     */
+    private static long scanTotal(MappedBTree mapped, long low, long high){
+        long total[] = new long[1];
+        mapped.scan(low, high, (sequence, frequency) -> total[0] += frequency);
+        return total[0];
+    }
+
+    /**
+     * @param line --query (String)
+     * @return true if line is a prefix query (ACG*) or a range query (AAAC-AGTT)
+     */
+    private static boolean isRangeQuery(String line){
+        return line.endsWith("*") || line.indexOf('-') >= 0;
+    }
+
+    /**
+     * Find the sequences a prefix or range query covers. Because sequences
+     * are packed first base highest, the sequences starting with a prefix
+     * are every sequence from the prefix followed by a's to the prefix
+     * followed by t's.
+     * @param line --prefix query (ACG*) or range query (AAAC-AGTT) (String)
+     * @param parser --InputParser for the query length
+     * @param k --length of sequences in the BTree (int)
+     * @return {smallest, largest} sequence covered, or null if line isn't a valid query
+     */
+    private static long[] parseRange(String line, InputParser parser, int k){
+        if (line.endsWith("*")){
+            String prefix = line.substring(0, line.length() - 1);
+            if (prefix.length() > k || !isSequence(prefix)){
+                return null;
+            }
+            int rest = 2 * (k - prefix.length());   //bits after the prefix
+            long low = parser.stringToBinary(prefix) << rest;
+            return new long[] {low, low | ((1L << rest) - 1)};
+        }
+        int dash = line.indexOf('-');
+        String from = line.substring(0, dash);
+        String to = line.substring(dash + 1);
+        if (from.length() != k || to.length() != k || !isSequence(from) || !isSequence(to)){
+            return null;
+        }
+        return new long[] {parser.stringToBinary(from), parser.stringToBinary(to)};
+    }
+
+    /**
+     * @param s (String)
+     * @return true if s is made only of a, c, g and t
+     */
+    private static boolean isSequence(String s){
+        for (int i = 0; i < s.length(); i++){
+            if ("acgtACGT".indexOf(s.charAt(i)) < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the rest of the query file
+     * @param first --first query, already read (String)
+     * @param scan --Scanner on the rest of the query file
+     * @return every query, or null if they aren't all the same length
+     */
+    private static ArrayList<String> readQueries(String first, Scanner scan){
+        ArrayList<String> lines = new ArrayList<String>();
+        String line = first;
+        while (true){
+            if (isRangeQuery(line)){
+                System.err.println("Prefix and range queries can't be used with --batch or --threads");
+                return null;
+            }
+            if (line.length() != first.length()){
                 System.err.println("Invalid query file: all lines must be same length");
-                return;
+                return null;
             }
-            frequency = tree.search(parser.stringToBinary(line), root);
-            System.out.println(frequency + "\t" + line);
+            lines.add(line);
+            if (!scan.hasNextLine()){
+                return lines;
+            }
+            line = scan.nextLine();
         }
+    }
 
+    /**
+     * @param lines --queries (ArrayList)
+     * @param parser --InputParser for the query length
+     * @param canonical --true to fold each query into its canonical form (boolean)
+     * @return binary sequence of each query
+     */
+    private static long[] toKeys(ArrayList<String> lines, InputParser parser, boolean canonical){
+        long keys[] = new long[lines.size()];
+        for (int i = 0; i < keys.length; i++){
+            keys[i] = parser.stringToBinary(lines.get(i));
+            if (canonical){
+                keys[i] = parser.canonical(keys[i]);
+            }
+        }
+        return keys;
     }
 
 }
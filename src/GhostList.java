@@ -0,0 +1,117 @@
+/**
+ * Offsets of nodes recently evicted from a cache, oldest first, for the
+ * ghost lists of 2Q and ARC. The offsets are kept in a ring of longs in the
+ * order they were added, and a LongIntHashMap from each offset to its slot
+ * in the ring makes lookups and removals constant time without boxing.
+ * A removed offset leaves a hole that is skipped when the oldest is removed,
+ * and holes are squeezed out when the ring fills up.
+ */
+public class GhostList {
+
+    private static final long HOLE = -1; //marks a slot whose offset was removed (offsets are never negative)
+
+    private long ring[]; //offsets in the order they were added, from head onward, wrapping around
+    private int head; //slot of the oldest offset (or hole)
+    private int used; //slots in use from head onward, holes included
+    private LongIntHashMap slots; //offset -> its slot in ring
+
+    /**
+     * Constructor
+     * @param capacity --number of offsets expected to be held at once (int)
+     */
+    public GhostList(int capacity) {
+        ring = new long[Math.max(2, capacity)];
+        slots = new LongIntHashMap(ring.length);
+    }
+
+    /**
+     * @return number of offsets held
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * @param offset --offset of a node (long)
+     * @return true if the offset is held
+     */
+    public boolean contains(long offset) {
+        return slots.get(offset, -1) >= 0;
+    }
+
+    /**
+     * Add an offset as the newest, unless it is already held
+     * @param offset --offset of an evicted node (long)
+     */
+    public void add(long offset) {
+        if (contains(offset)) {
+            return;
+        }
+        if (used == ring.length) {
+            compact();
+        }
+        int slot = (head + used) % ring.length;
+        ring[slot] = offset;
+        slots.put(offset, slot);
+        used++;
+    }
+
+    /**
+     * Remove an offset wherever it is in the list
+     * @param offset --offset of a node (long)
+     * @return true if the offset was held
+     */
+    public boolean remove(long offset) {
+        int slot = slots.get(offset, -1);
+        if (slot < 0) {
+            return false;
+        }
+        ring[slot] = HOLE;
+        slots.remove(offset);
+        return true;
+    }
+
+    /**
+     * Forget the oldest offset, if there is one
+     */
+    public void removeOldest() {
+        if (size() == 0) {
+            return;
+        }
+        while (ring[head] == HOLE) {
+            advanceHead();
+        }
+        slots.remove(ring[head]);
+        advanceHead();
+    }
+
+    /**
+     * Move the head past the slot it is on
+     */
+    private void advanceHead() {
+        head = (head + 1) % ring.length;
+        used--;
+    }
+
+    /**
+     * Copy the held offsets to the start of a ring without holes, doubling
+     * its size if they would still fill more than half of it
+     */
+    private void compact() {
+        int length = (size() > ring.length / 2) ? ring.length * 2 : ring.length;
+        long compacted[] = new long[length];
+        int n = 0;
+        for (int i = 0; i < used; i++) {
+            long offset = ring[(head + i) % ring.length];
+            if (offset != HOLE) {
+                compacted[n] = offset;
+                slots.put(offset, n);
+                n++;
+            }
+        }
+        ring = compacted;
+        head = 0;
+        used = n;
+    }
+
+}
@@ -1,75 +1,307 @@
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
 
 public class InputParser {
 
-    private int k;
+    private static final int READ_BUFFER_BYTES = 1 << 16; //bytes read from the gbk file at a time
+    private static final byte ORIGIN[] = "ORIGIN".getBytes(StandardCharsets.US_ASCII); //line that starts a sequence
+    private static final byte END[] = "//".getBytes(StandardCharsets.US_ASCII); //line that ends a record
+
+    private int k; //longest length parsed
+    private int lengths[]; //lengths of subsequences to parse
+    private long masks[]; //low 2*length bits set, for each length
+    private long kmer; //last (up to) k bases read, 2 bits each
+    private long reverse; //reverse complement of the last k bases, the newest base in the highest 2 bits
+    private boolean canonical; //true to emit the smaller of each subsequence and its reverse complement
+    private int threads = 1; //threads used to decompress BGZF input
+    private int valid; //number of bases read since the start of the record or the last ambiguous base, up to k
 
     /**
      * Constructor
      * @param length --length of subsequences to parse (int)
      */
     public InputParser(int length){
-        if (length <= 0){
-            throw new IllegalArgumentException("Length must be greater than 0");
+        this(new int[] {length});
+    }
+
+    /**
+     * Constructor, for parsing subsequences of several lengths in one pass
+     * One rolling sequence of the longest length is kept, and each shorter
+     * subsequence is its last bases, found by masking
+     * @param lengths --lengths of subsequences to parse (int[])
+     */
+    public InputParser(int lengths[]){
+        this.lengths = lengths.clone();
+        masks = new long[lengths.length];
+        for (int i = 0; i < lengths.length; i++){
+            if (lengths[i] <= 0){
+                throw new IllegalArgumentException("Length must be greater than 0");
+            }
+            masks[i] = (lengths[i] == 32) ? -1L : (1L << (2 * lengths[i])) - 1;
+            k = Math.max(k, lengths[i]);
+        }
+    }
+
+    /**
+     * Fold each subsequence and its reverse complement (the same sequence
+     * read from the other strand) together, so both are counted as whichever
+     * of the two is smaller
+     * @param canonical --true to fold strands together (boolean)
+     */
+    public void setCanonical(boolean canonical){
+        this.canonical = canonical;
+    }
+
+    /**
+     * Start a new sequence -- no k-mer may span the bases before and after this
+     */
+    private void resetKmer(){
+        kmer = 0;
+        reverse = 0;
+        valid = 0;
+    }
+
+    /**
+     * Roll one character of a sequence line into the current k-mer, emitting
+     * the subsequence of each length once that many valid bases have been read in a row.
+     * Digits and whitespace (line numbers and spacing) are skipped; 'n' or any
+     * other ambiguous base breaks the sequence, so no k-mer includes it.
+     * @param c --character read (char)
+     * @param sinks --receive each complete subsequence, one for each length
+     */
+    private void addBase(char c, KmerSink sinks[]){
+        long base;
+        switch (c){
+            case 'a':
+            case 'A': base = 0; break;
+            case 'c':
+            case 'C': base = 1; break;
+            case 'g':
+            case 'G': base = 2; break;
+            case 't':
+            case 'T': base = 3; break;
+            case ' ':
+            case '\t':
+            case '\r':
+            case '0': case '1': case '2': case '3': case '4':
+            case '5': case '6': case '7': case '8': case '9':
+                return;
+            default:
+                resetKmer();
+                return;
+        }
+        kmer = (kmer << 2) | base;
+        reverse = (reverse >>> 2) | ((3 - base) << (2 * (k - 1)));  //complement of a base is 3 - base
+        if (valid < k){
+            valid++;
+        }
+        for (int i = 0; i < lengths.length; i++){
+            if (valid >= lengths[i]){
+                long sequence = kmer & masks[i];
+                if (canonical){
+                    //the reverse complement of the last lengths[i] bases is the top of reverse
+                    sequence = Math.min(sequence, reverse >>> (2 * (k - lengths[i])));
+                }
+                sinks[i].add(sequence);
+            }
         }
-        k = length;
     }
 
     /**
+     * Reads the file in large blocks through its channel and scans the bytes
+     * directly, a line at a time, for the ORIGIN and // lines that start and
+     * end each record's sequence. Bases in between go straight to the k-mer
+     * encoder, without building strings.
      * @param filename -- name of file to parse (String)
-     * @param tree -- BTree to insert binary sequences into
+     * @param sink -- receives each binary sequence, e.g. tree::insert
      * @throws IOException
      */
-    public void parseFile(String filename, BTree tree) throws IOException{
-        RandomAccessFile file = new RandomAccessFile(filename, "r");
-        parse(file, 0, tree);
+    public void parseFile(String filename, KmerSink sink) throws IOException{
+        parseRange(filename, 0, Long.MAX_VALUE, new KmerSink[] {sink});
     }
 
     /**
-     * Helper method for parseFile
-     * @param file --RandomAccessFile to parse
-     * @param offset --offset to begin parsing at (0 for first call)
-     * @param tree --BTree to store keys in
+     * Parse a file for subsequences of every length given to the constructor
+     * @param filename -- name of file to parse (String)
+     * @param sinks -- receive each binary sequence, one for each length (KmerSink[])
      * @throws IOException
      */
-    private void parse(RandomAccessFile file, long offset, BTree tree) throws IOException {
-        file.seek(offset);
-        while (file.getFilePointer() != file.length()){
-            if (file.readLine().equals("ORIGIN")){  //found starting point
-                break;
+    public void parseFile(String filename, KmerSink sinks[]) throws IOException{
+        parseRange(filename, 0, Long.MAX_VALUE, sinks);
+    }
+
+    /**
+     * Parse the records whose ORIGIN line starts in part of a file.
+     * A record that starts in the range is read to its end even if that
+     * is past the range, and one that starts before it is skipped, so
+     * ranges that cover a file between them parse every record exactly once.
+     * A gzip-compressed file can't be read from the middle, so the range
+     * starting at 0 parses all of it and any other range parses nothing.
+     * @param filename -- name of file to parse (String)
+     * @param start --offset to begin at; parsing starts with the first line that starts here or later (long)
+     * @param end --offset after the range (long)
+     * @param sinks -- receive each binary sequence, one for each length (KmerSink[])
+     * @throws IOException
+     */
+    public void parseRange(String filename, long start, long end, KmerSink sinks[]) throws IOException{
+        if (sinks.length != lengths.length){
+            throw new IllegalArgumentException("Need one sink for each of the " + lengths.length + " lengths");
+        }
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (isCompressed(channel)){
+                if (start == 0){
+                    InputStream in = openCompressed(channel);
+                    try {
+                        parse(Channels.newChannel(in), 0, Long.MAX_VALUE, sinks);
+                    } finally {
+                        in.close();
+                    }
+                }
+                return;
             }
+            channel.position(Math.max(0, start - 1));
+            parse(channel, start, end, sinks);
+        } finally {
+            file.close();
         }
-        if (file.getFilePointer() == file.length()){    //reached end of file without finding ORIGIN
-            return;
+    }
+
+    /**
+     * Use several threads to decompress BGZF files
+     * @param threads --number of threads (int)
+     */
+    public void setThreads(int threads){
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param filename --name of file (String)
+     * @return true if the file is gzip-compressed
+     * @throws IOException if the file can't be read
+     */
+    public static boolean isCompressed(String filename) throws IOException{
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            return isCompressed(file.getChannel());
+        } finally {
+            file.close();
         }
-        String sequence = "";
-        while (file.getFilePointer() != file.length()){ //Until we reach end of file
-            String next = file.readLine(); //read a string
-            if (next.equals("//")){
-                break;
+    }
+
+    /**
+     * @param channel --channel of file to check
+     * @return true if the file starts with the gzip magic number
+     * @throws IOException if the file can't be read
+     */
+    private static boolean isCompressed(FileChannel channel) throws IOException{
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        while (magic.hasRemaining()){
+            if (channel.read(magic, magic.position()) < 0){
+                return false;   //shorter than the magic number
             }
-            next = next.replaceAll("\\d", "");  //remove all numbers
-            next = next.replaceAll(" ", "");    //remove all spaces
-            sequence += next;
         }
-        int numValues = sequence.length() - k + 1;
-        if (numValues < 0){
-            return;
+        return magic.position() == 2 && magic.get(0) == (byte) 0x1f && magic.get(1) == (byte) 0x8b;
+    }
+
+    /**
+     * Open a stream of a gzip-compressed file's decompressed contents.
+     * BGZF files (gzip files made of independent blocks, as written by bgzip)
+     * are decompressed on several threads, if more than one is set; other
+     * gzip files, and BGZF files on a single thread, are read as ordinary
+     * multi-member gzip without starting any threads.
+     * @param channel --channel of compressed file
+     * @return decompressed contents
+     * @throws IOException if the file can't be read
+     */
+    private InputStream openCompressed(FileChannel channel) throws IOException{
+        channel.position(0);
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel), READ_BUFFER_BYTES);
+        if (threads > 1 && BgzfInputStream.isBgzf(channel)){
+            return new BgzfInputStream(in, threads);
         }
+        return new GZIPInputStream(in, READ_BUFFER_BYTES);
+    }
+
+    /**
+     * Helper method for parseRange
+     * @param channel --channel of file to parse, positioned at start - 1 (or 0 if start is 0)
+     * @param start --offset to begin at (long)
+     * @param end --offset after the range (long)
+     * @param sinks --receive each binary sequence, one for each length
+     * @throws IOException
+     */
+    private void parse(ReadableByteChannel channel, long start, long end, KmerSink sinks[]) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        byte line[] = new byte[ORIGIN.length + 1]; //start of current line, enough to recognize ORIGIN and //
+        int lineLength = 0; //bytes in current line so far
+        boolean inSequence = false; //true between an ORIGIN line and the // line that ends the record
+        boolean skipping = start > 0; //true until the end of the line before start has been passed
+        long position = skipping ? start - 1 : 0; //offset of the byte being scanned
 
-        for (int i = 0; i < numValues; i++){
-            String subsequence = sequence.substring(i, i+k);
-            if (subsequence.contains("n")){
-                continue;   //skip all subsequences that include an n, space, or digit
+        while (channel.read(buffer) != -1){
+            buffer.flip();
+            while (buffer.hasRemaining()){
+                byte c = buffer.get();
+                position++;
+                if (c == '\n' || c == '\r'){
+                    //end of line -- check whether it starts or ends a sequence
+                    if (skipping){
+                        skipping = false;
+                    }
+                    else if (!inSequence && lineEquals(line, lineLength, ORIGIN)){
+                        inSequence = true;
+                        resetKmer();    //sequences don't run from one record into the next
+                    }
+                    else if (inSequence && lineEquals(line, lineLength, END)){
+                        inSequence = false;
+                    }
+                    lineLength = 0;
+                    if (!inSequence && position >= end){
+                        return; //any record starting after this belongs to the next range
+                    }
+                    continue;
+                }
+                if (skipping){
+                    continue;
+                }
+                if (lineLength < line.length){
+                    line[lineLength] = c;
+                }
+                lineLength++;
+                if (inSequence){
+                    addBase((char) c, sinks);
+                }
             }
-            long binary = stringToBinary(subsequence);
+            buffer.clear();
+        }
+    }
 
-            // If we are using the cache, we must first use the cache to do the operation.
-            tree.insert(binary);
+    /**
+     * @param line --start of a line (byte[])
+     * @param length --full length of the line (int)
+     * @param text --bytes to compare to (byte[])
+     * @return true if the line is exactly text
+     */
+    private static boolean lineEquals(byte line[], int length, byte text[]){
+        if (length != text.length){
+            return false;
+        }
+        for (int i = 0; i < length; i++){
+            if (line[i] != text[i]){
+                return false;
+            }
         }
-        //look for another ORIGIN
-        parse(file, file.getFilePointer(), tree);
+        return true;
     }
 
     /**
@@ -99,6 +331,30 @@ public class InputParser {
         return binary;
     }
 
+    /**
+     * @param key --binary sequence of length k (long)
+     * @return the smaller of key and its reverse complement
+     */
+    public long canonical(long key){
+        return Math.min(key, reverseComplement(key, k));
+    }
+
+    /**
+     * Reverse complement of a binary sequence: its bases complemented
+     * and in reverse order
+     * @param key --binary sequence (long)
+     * @param length --number of bases in key (int)
+     * @return reverse complement of key
+     */
+    public static long reverseComplement(long key, int length){
+        long x = ~key;  //complement every base
+        //reverse the order of the 2-bit bases: swap neighbours, then pairs, then bytes
+        x = ((x >>> 2) & 0x3333333333333333L) | ((x & 0x3333333333333333L) << 2);
+        x = ((x >>> 4) & 0x0F0F0F0F0F0F0F0FL) | ((x & 0x0F0F0F0F0F0F0F0FL) << 4);
+        x = Long.reverseBytes(x);
+        return x >>> (64 - 2 * length);
+    }
+
     /**
      * Checks if a character is a numeric digit
      * @param c -- char to check
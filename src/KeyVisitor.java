@@ -0,0 +1,12 @@
+/**
+ * Receives the keys a scan of a BTree finds, in increasing order
+ */
+public interface KeyVisitor {
+
+    /**
+     * @param sequence --key, encoded as by InputParser.stringToBinary (long)
+     * @param frequency --number of times it occurred (int)
+     */
+    void visit(long sequence, int frequency);
+
+}
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+
+/**
+ * Counts sequences in memory before they reach a BTree, so that a sequence
+ * that occurs many times is inserted once with its total count instead of
+ * once per occurrence. Counts are kept in a LongIntHashMap and flushed into
+ * the tree in sorted order when the input is finished or the memory budget is
+ * full, so that BTree.insertSorted can add runs of them to the same leaf.
+ */
+public class KmerCounter implements KmerSink {
+
+    private static final int BYTES_PER_KEY = 24; //a key and count, in tables kept at most half full
+
+    private BTree tree; //tree counts are flushed into
+    private LongIntHashMap counts; //sequence -> occurrences since the last flush
+    private int maxKeys; //number of distinct sequences the budget holds
+    private int flushes; //number of times counts have been flushed
+
+    /**
+     * Constructor
+     * @param tree --BTree to flush counts into
+     * @param k --length of sequences (int)
+     * @param inputLength --length of the input in bytes, which bounds how many distinct sequences it can hold (long)
+     * @param maxBytes --memory to use for counts (long)
+     */
+    public KmerCounter(BTree tree, int k, long inputLength, long maxBytes) {
+        this.tree = tree;
+        maxKeys = (int) Math.max(1, Math.min(1 << 29, maxBytes / BYTES_PER_KEY));
+        long distinct = (k < 31) ? Math.min(1L << (2 * k), inputLength) : inputLength;  //4^k possible sequences
+        counts = new LongIntHashMap((int) Math.min(distinct, maxKeys));
+    }
+
+    /**
+     * Count one occurrence of a sequence, flushing first if the budget is full
+     * @param sequence (long)
+     */
+    public void add(long sequence) {
+        if (counts.size() >= maxKeys && counts.get(sequence, 0) == 0) {
+            flush();
+        }
+        counts.add(sequence, 1);
+    }
+
+    /**
+     * Insert every counted sequence into the tree, in sorted order, and start counting again
+     */
+    public void flush() {
+        long keys[] = counts.keys();
+        Arrays.sort(keys);
+        for (long key : keys) {
+            tree.insertSorted(key, counts.get(key, 0));
+        }
+        counts.clear();
+        flushes++;
+    }
+
+    /**
+     * @return number of times counts have been flushed into the tree
+     */
+    public int getFlushes() {
+        return flushes;
+    }
+
+}
@@ -0,0 +1,11 @@
+/**
+ * Receives the binary sequences an InputParser finds in a gbk file
+ */
+public interface KmerSink {
+
+    /**
+     * @param sequence --one subsequence, encoded as by InputParser.stringToBinary (long)
+     */
+    void add(long sequence);
+
+}
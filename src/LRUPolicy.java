@@ -0,0 +1,24 @@
+/**
+ * Least recently used: evicts the node that has gone unused the longest
+ */
+public class LRUPolicy implements CachePolicy {
+
+    private EntryList recency = new EntryList(); //head is most recently used
+
+    public String getName() {
+        return "lru";
+    }
+
+    public void admit(CacheEntry entry) {
+        recency.addFirst(entry);
+    }
+
+    public void access(CacheEntry entry) {
+        recency.moveToFront(entry);
+    }
+
+    public CacheEntry evict() {
+        return recency.removeLast();
+    }
+
+}
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+
+/**
+ * Hash map from long to int that stores keys and values in primitive
+ * arrays, using open addressing with linear probing. Nothing is boxed
+ * and lookups don't allocate. To map to objects, map to an index into an
+ * array of them.
+ * Long.MIN_VALUE marks an empty bucket, so it can't be used as a key.
+ */
+public class LongIntHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private long keys[]; //key stored in each bucket, EMPTY if bucket is empty
+    private int values[]; //value for each bucket
+    private int mask; //capacity - 1, capacity is a power of 2
+    private int shift; //64 - log2(capacity), used to take the top bits of the hash
+    private int count; //number of keys stored
+
+    /**
+     * Constructor
+     * @param expected --number of keys expected, so the table doesn't need to grow (int)
+     */
+    public LongIntHashMap(int expected) {
+        allocate(capacityFor(expected));
+    }
+
+    /**
+     * @return number of keys in the map
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param key (long)
+     * @param defaultValue --value to return if key isn't in the map (int)
+     * @return value mapped to key
+     */
+    public int get(long key, int defaultValue) {
+        int i = hash(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Map a key to a value, replacing any value it had
+     * @param key (long)
+     * @param value (int)
+     */
+    public void put(long key, int value) {
+        int i = bucketFor(key);   //may grow the tables, so values is read after it
+        values[i] = value;
+    }
+
+    /**
+     * Remove every key, keeping the tables at their current size
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        count = 0;
+    }
+
+    /**
+     * Add to the value mapped to a key, starting from 0 if it isn't in the map
+     * @param key (long)
+     * @param delta --amount to add (int)
+     * @return new value
+     */
+    public int add(long key, int delta) {
+        int i = bucketFor(key);
+        values[i] += delta;
+        return values[i];
+    }
+
+    /**
+     * Add every value of another map to the value of the same key in this one
+     * @param other --map to add (LongIntHashMap)
+     */
+    public void addAll(LongIntHashMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != EMPTY) {
+                add(other.keys[i], other.values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return every key in the map, in no particular order
+     */
+    public long[] keys() {
+        long result[] = new long[count];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove a key
+     * @param key (long)
+     * @return true if key was in the map
+     */
+    public boolean remove(long key) {
+        int i = hash(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                removeAt(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Find the bucket holding a key, adding the key with value 0 if it isn't there
+     * @param key (long)
+     * @return bucket position
+     */
+    private int bucketFor(long key) {
+        if ((count + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int i = hash(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = 0;
+        count++;
+        return i;
+    }
+
+    /**
+     * Empty a bucket, shifting later keys of the same probe run back
+     * so that every key can still be found from its home bucket
+     * @param pos --bucket position (int)
+     */
+    private void removeAt(int pos) {
+        int hole = pos;
+        int i = (pos + 1) & mask;
+        while (keys[i] != EMPTY) {
+            int home = hash(keys[i]);
+            //the key at i may fill the hole if the hole lies between its home and i
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        count--;
+    }
+
+    /**
+     * @param key (long)
+     * @return home bucket of key
+     */
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * @param expected --number of keys (int)
+     * @return smallest power of 2 capacity that keeps the table at most half full
+     */
+    private static int capacityFor(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (long) expected * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Allocate empty tables
+     * @param capacity --number of buckets, a power of 2 (int)
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        count = 0;
+    }
+
+    /**
+     * Move every key into larger tables
+     * @param capacity --new number of buckets, a power of 2 (int)
+     */
+    private void resize(int capacity) {
+        long oldKeys[] = keys;
+        int oldValues[] = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int bucket = bucketFor(oldKeys[i]);
+                values[bucket] = oldValues[i];
+            }
+        }
+    }
+
+}
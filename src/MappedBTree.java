@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only view of a BTree file that is memory-mapped instead of read
+ * through a RandomAccessFile. Keys are compared straight from the mapping,
+ * so searching doesn't copy nodes onto the heap, and pages the OS has
+ * cached stay cached between runs.
+ *
+ * A single mapping can't be larger than 2GB, so the file is mapped in chunks.
+ * Every chunk overlaps the next by one node so any node can be read from
+ * the chunk its offset falls in.
+ */
+public class MappedBTree {
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS; //bytes of node offsets covered by each chunk
+
+    private int t; //degree
+    private long rootOffset; //offset of root node within file
+    private MappedByteBuffer chunks[]; //mappings of the file, chunks[i] starts at i * CHUNK_SIZE
+
+    /**
+     * Constructor
+     * @param t --degree of BTree (int)
+     * @param file --file that BTree is stored in, opened for reading
+     * @param rootOffset --offset of root node (long)
+     * @throws IOException if the file can't be mapped
+     */
+    public MappedBTree(int t, RandomAccessFile file, long rootOffset) throws IOException {
+        this.t = t;
+        this.rootOffset = rootOffset;
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+        int numChunks = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        chunks = new MappedByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++){
+            long start = (long) i << CHUNK_BITS;
+            long size = Math.min(CHUNK_SIZE + BTreeNode.nodeSize(t, true), length - start);  //large enough for either node layout
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    /**
+     * Search the BTree for a given sequence
+     * @param sequence --to search for (long)
+     * @return frequency of sequence's occurrence
+     */
+    public long search(long sequence){
+        long offset = rootOffset;
+        while (offset >= 0){
+            MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+            int base = (int) (offset & (CHUNK_SIZE - 1));
+            int i = BTreeNode.findKey(chunk, base, t, sequence);
+            if (i >= 0){
+                //found -- frequency is stored right after the key
+                return chunk.getInt(base + BTreeNode.keyPosition(t, i) + 8);
+            }
+            i = -(i + 1);
+            //leaves have -1 for every child, which ends the search
+            offset = chunk.getLong(base + BTreeNode.childPosition(t, i));
+        }
+        return 0;
+    }
+
+    /**
+     * Visit every key from low to high, in increasing order, with one
+     * descent to the first key that isn't below low and an in-order walk
+     * from there until a key above high is reached
+     * @param low --smallest key to visit (long)
+     * @param high --largest key to visit (long)
+     * @param visitor --receives each key and its frequency
+     */
+    public void scan(long low, long high, KeyVisitor visitor){
+        if (low <= high){
+            scan(low, high, rootOffset, visitor);
+        }
+    }
+
+    /**
+     * Total frequency of every key from low to high, in a BTree whose nodes
+     * store the total frequency under each child. Children whose keys all
+     * lie in the range are counted from those sums without being read.
+     * @param low --smallest key to count (long)
+     * @param high --largest key to count (long)
+     * @return sum of the frequencies of the keys in the range
+     */
+    public long sum(long low, long high){
+        if (low > high){
+            return 0;
+        }
+        return sum(low, high, rootOffset, false, false);
+    }
+
+    /**
+     * Helper method for sum
+     * @param low --smallest key to count (long)
+     * @param high --largest key to count (long)
+     * @param offset --offset of root of subtree (long)
+     * @param aboveLow --true if every key in the subtree is known to be at least low (boolean)
+     * @param belowHigh --true if every key in the subtree is known to be at most high (boolean)
+     * @return sum of the frequencies of the keys of the subtree in the range
+     */
+    private long sum(long low, long high, long offset, boolean aboveLow, boolean belowHigh){
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+        int base = (int) (offset & (CHUNK_SIZE - 1));
+        int n = (int) chunk.getLong(base + 8);
+        boolean leaf = chunk.getLong(base + BTreeNode.childPosition(t, 0)) == -1;
+        long total = 0;
+        long previous = 0; //key i-1
+        for (int i = 0; i <= n; i++){
+            long key = (i < n) ? chunk.getLong(base + BTreeNode.keyPosition(t, i)) : 0;
+            //child i holds the keys between key i-1 and key i
+            if (!leaf){
+                boolean childAboveLow = (i == 0) ? aboveLow : previous >= low;
+                boolean childBelowHigh = (i == n) ? belowHigh : key <= high;
+                if (childAboveLow && childBelowHigh){
+                    total += chunk.getLong(base + BTreeNode.sumPosition(t, i));
+                }
+                else if ((i == n || key > low) && (i == 0 || previous < high)){
+                    total += sum(low, high, chunk.getLong(base + BTreeNode.childPosition(t, i)), childAboveLow, childBelowHigh);
+                }
+            }
+            if (i < n && key >= low && key <= high){
+                total += chunk.getInt(base + BTreeNode.keyPosition(t, i) + 8);
+            }
+            previous = key;
+        }
+        return total;
+    }
+
+    /**
+     * Helper method for scan
+     * @param low --smallest key to visit (long)
+     * @param high --largest key to visit (long)
+     * @param offset --offset of root of subtree, -1 below a leaf (long)
+     * @param visitor --receives each key and its frequency
+     * @return false once a key above high has been seen, so the scan can stop
+     */
+    private boolean scan(long low, long high, long offset, KeyVisitor visitor){
+        if (offset < 0){
+            return true;
+        }
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+        int base = (int) (offset & (CHUNK_SIZE - 1));
+        int n = (int) chunk.getLong(base + 8);
+        int first = BTreeNode.findKey(chunk, base, t, low);
+        boolean found = first >= 0;
+        if (!found){
+            first = -(first + 1);
+        }
+        for (int i = first; i <= n; i++){
+            //child i holds the keys between key i-1 and key i; if key i is low, they're all below it
+            if (!(found && i == first)){
+                if (!scan(low, high, chunk.getLong(base + BTreeNode.childPosition(t, i)), visitor)){
+                    return false;
+                }
+            }
+            if (i == n){
+                break;
+            }
+            int position = base + BTreeNode.keyPosition(t, i);
+            long key = chunk.getLong(position);
+            if (key > high){
+                return false;
+            }
+            visitor.visit(key, chunk.getInt(position + 8));
+        }
+        return true;
+    }
+
+}
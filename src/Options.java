@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Splits command line arguments into positional arguments and
+ * optional flags of the form --name or --name=value.
+ * Flags may appear anywhere on the command line.
+ */
+public class Options {
+
+    private ArrayList<String> positional; //arguments that aren't flags, in order
+    private HashMap<String, String> flags; //flag name -> value ("" for a flag without a value)
+
+    /**
+     * Constructor
+     * @param args --command line arguments (String[])
+     */
+    public Options(String args[]){
+        positional = new ArrayList<String>();
+        flags = new HashMap<String, String>();
+        for (String arg : args){
+            if (arg.startsWith("--") && arg.length() > 2){
+                int split = arg.indexOf('=');
+                if (split == -1){
+                    flags.put(arg.substring(2), "");
+                }
+                else {
+                    flags.put(arg.substring(2, split), arg.substring(split + 1));
+                }
+            }
+            else {
+                positional.add(arg);
+            }
+        }
+    }
+
+    /**
+     * @return arguments that aren't flags, in the order they were given
+     */
+    public String[] getPositional(){
+        return positional.toArray(new String[positional.size()]);
+    }
+
+    /**
+     * Check that every flag given is one the program understands
+     * @param known --names of supported flags
+     * @return true if no unknown flags were given
+     */
+    public boolean onlyKnown(String... known){
+        for (String name : flags.keySet()){
+            boolean found = false;
+            for (String k : known){
+                if (k.equals(name)){
+                    found = true;
+                }
+            }
+            if (!found){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name --name of flag, without leading dashes
+     * @return true if flag was given
+     */
+    public boolean has(String name){
+        return flags.containsKey(name);
+    }
+
+    /**
+     * @param name --name of flag, without leading dashes
+     * @param defaultValue --value to use if flag wasn't given
+     * @return value of flag
+     */
+    public String get(String name, String defaultValue){
+        String value = flags.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    /**
+     * @param name --name of flag, without leading dashes
+     * @param defaultValue --value to use if flag wasn't given
+     * @return value of flag as an int
+     * @throws NumberFormatException if the value isn't an integer
+     */
+    public int getInt(String name, int defaultValue){
+        String value = flags.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+}
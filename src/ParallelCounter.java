@@ -0,0 +1,149 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the sequences in one or more gbk files on several threads,
+ * for one or more sequence lengths at once.
+ * Each file is cut into byte ranges at record boundaries (see
+ * InputParser.parseRange), the ranges are counted by fork/join tasks, each
+ * into its own LongIntHashMap, and the partial counts are merged as the
+ * tasks join. Every record is parsed whole by one task, so no sequence
+ * spans two records.
+ */
+public class ParallelCounter extends RecursiveTask<LongIntHashMap[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long MIN_RANGE_BYTES = 1 << 20; //smallest range worth a task of its own
+    private static final int RANGES_PER_THREAD = 4; //ranges per thread, so threads that finish early can take more
+
+    private int lengths[]; //lengths of sequences
+    private boolean canonical; //true to count each sequence together with its reverse complement
+    private int threads; //threads each task decompresses a BGZF file on
+    private String files[]; //file each range is in
+    private long starts[]; //offset each range starts at
+    private long ends[]; //offset after each range
+    private int from; //first range this task counts
+    private int to; //range after the last one this task counts
+
+    /**
+     * Constructor
+     * @param lengths --lengths of sequences (int[])
+     * @param canonical --true to count each sequence together with its reverse complement (boolean)
+     * @param threads --number of threads each task decompresses a BGZF file on (int)
+     * @param files --file each range is in (String[])
+     * @param starts --offset each range starts at (long[])
+     * @param ends --offset after each range (long[])
+     * @param from --first range to count (int)
+     * @param to --range after the last one to count (int)
+     */
+    private ParallelCounter(int lengths[], boolean canonical, int threads, String files[], long starts[], long ends[], int from, int to) {
+        this.lengths = lengths;
+        this.canonical = canonical;
+        this.threads = threads;
+        this.files = files;
+        this.starts = starts;
+        this.ends = ends;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Count every sequence in a set of gbk files
+     * @param inputs --names of gbk files (String[])
+     * @param lengths --lengths of sequences (int[])
+     * @param canonical --true to count each sequence together with its reverse complement (boolean)
+     * @param threads --number of threads to count on (int)
+     * @return sequence -> number of times it occurs, for each length
+     * @throws IOException if a file can't be read
+     */
+    public static LongIntHashMap[] count(String inputs[], int lengths[], boolean canonical, int threads) throws IOException {
+        long total = 0;
+        for (String input : inputs) {
+            File file = new File(input);
+            if (!file.isFile()) {
+                throw new FileNotFoundException(input);
+            }
+            total += file.length();
+        }
+        long rangeBytes = Math.max(MIN_RANGE_BYTES, total / ((long) threads * RANGES_PER_THREAD));
+
+        ArrayList<String> files = new ArrayList<String>();
+        ArrayList<Long> starts = new ArrayList<Long>();
+        for (String input : inputs) {
+            //a compressed file can only be read from the start, so it is one range
+            long length = InputParser.isCompressed(input) ? 0 : new File(input).length();
+            for (long start = 0; start == 0 || start < length; start += rangeBytes) {
+                files.add(input);
+                starts.add(start);
+            }
+        }
+        int n = files.size();
+        long startArray[] = new long[n];
+        long endArray[] = new long[n];
+        for (int i = 0; i < n; i++) {
+            startArray[i] = starts.get(i);
+            //a file's last range runs to its end
+            endArray[i] = (i + 1 < n && files.get(i + 1).equals(files.get(i))) ? starts.get(i + 1) : Long.MAX_VALUE;
+        }
+
+        //a single range leaves the other threads free to decompress it; with several,
+        //the threads are already busy counting, so each task inflates on its own thread
+        int inflaters = (n == 1) ? threads : 1;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new ParallelCounter(lengths, canonical, inflaters, files.toArray(new String[n]), startArray, endArray, 0, n));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Count this task's ranges, splitting them between two subtasks if there is more than one
+     * @return sequence -> number of times it occurs in these ranges, for each length
+     */
+    protected LongIntHashMap[] compute() {
+        if (to - from == 1) {
+            LongIntHashMap counts[] = new LongIntHashMap[lengths.length];
+            KmerSink sinks[] = new KmerSink[lengths.length];
+            for (int i = 0; i < lengths.length; i++) {
+                LongIntHashMap map = new LongIntHashMap(1 << 16);
+                counts[i] = map;
+                sinks[i] = sequence -> map.add(sequence, 1);
+            }
+            try {
+                InputParser parser = new InputParser(lengths);
+                parser.setCanonical(canonical);
+                parser.setThreads(threads);
+                parser.parseRange(files[from], starts[from], ends[from], sinks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return counts;
+        }
+        int middle = (from + to) >>> 1;
+        ParallelCounter left = new ParallelCounter(lengths, canonical, threads, files, starts, ends, from, middle);
+        left.fork();
+        LongIntHashMap right[] = new ParallelCounter(lengths, canonical, threads, files, starts, ends, middle, to).compute();
+        LongIntHashMap counts[] = left.join();
+        for (int i = 0; i < lengths.length; i++) {
+            //add the smaller map into the larger
+            if (counts[i].size() < right[i].size()) {
+                right[i].addAll(counts[i]);
+                counts[i] = right[i];
+            }
+            else {
+                counts[i].addAll(right[i]);
+            }
+        }
+        return counts;
+    }
+
+}
@@ -0,0 +1,148 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Merges sorted run files of (long sequence, int count) records into one
+ * sorted stream, adding together the counts of a sequence that appears in
+ * more than one run. The runs are merged k ways at once through a binary
+ * heap of the next sequence in each run, kept in primitive arrays.
+ */
+public class RunMerger {
+
+    private static final int RUN_BUFFER_BYTES = 1 << 16; //read buffer for each run
+
+    private DataInputStream runs[]; //open runs
+    private long heapKeys[]; //next sequence of each run in the heap, as a min-heap
+    private int heapRuns[]; //run each heap entry came from
+    private int heapSize; //runs that still have records
+    private int heads[]; //count of the record at the head of each run, indexed by run
+    private int nextCount; //count of the record readRecord() just read
+
+    private long key; //sequence returned by the last call to next()
+    private int count; //its total count
+
+    /**
+     * Constructor
+     * @param files --sorted run files (File[])
+     * @throws IOException if a run can't be read
+     */
+    public RunMerger(File files[]) throws IOException {
+        runs = new DataInputStream[files.length];
+        heapKeys = new long[files.length];
+        heapRuns = new int[files.length];
+        heads = new int[files.length];
+        for (int i = 0; i < files.length; i++) {
+            runs[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(files[i]), RUN_BUFFER_BYTES));
+            if (readRecord(i)) {
+                heads[i] = nextCount;
+                heapKeys[heapSize] = key;
+                heapRuns[heapSize] = i;
+                heapSize++;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Move to the next sequence, adding up its counts from every run
+     * @return false once every run is finished
+     * @throws IOException if a run can't be read
+     */
+    public boolean next() throws IOException {
+        if (heapSize == 0) {
+            return false;
+        }
+        long smallest = heapKeys[0];
+        int total = 0;
+        while (heapSize > 0 && heapKeys[0] == smallest) {
+            int run = heapRuns[0];
+            total += heads[run];
+            if (readRecord(run)) {
+                heapKeys[0] = key;
+                heads[run] = nextCount;
+            }
+            else {
+                heapSize--;
+                heapKeys[0] = heapKeys[heapSize];
+                heapRuns[0] = heapRuns[heapSize];
+            }
+            siftDown(0);
+        }
+        key = smallest;
+        count = total;
+        return true;
+    }
+
+    /**
+     * @return sequence found by the last call to next()
+     */
+    public long getKey() {
+        return key;
+    }
+
+    /**
+     * @return total count of that sequence
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Close every run
+     * @throws IOException if a run can't be closed
+     */
+    public void close() throws IOException {
+        for (DataInputStream run : runs) {
+            run.close();
+        }
+    }
+
+    /**
+     * Read the next record of a run into key and nextCount
+     * @param run --index of run (int)
+     * @return false if the run is finished
+     * @throws IOException if the run can't be read
+     */
+    private boolean readRecord(int run) throws IOException {
+        try {
+            key = runs[run].readLong();
+        } catch (EOFException e) {
+            return false;
+        }
+        nextCount = runs[run].readInt();
+        return true;
+    }
+
+    /**
+     * Restore the heap below a position
+     * @param i --heap position (int)
+     */
+    private void siftDown(int i) {
+        long k = heapKeys[i];
+        int r = heapRuns[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (heapKeys[child] >= k) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapRuns[i] = heapRuns[child];
+            i = child;
+        }
+        heapKeys[i] = k;
+        heapRuns[i] = r;
+    }
+
+}
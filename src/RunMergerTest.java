@@ -0,0 +1,120 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class RunMergerTest {
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("TESTING: Sorted Run Merging\n---------------------------");
+        int failures = mergeWrittenRuns() + mergeSpilledRuns();
+        System.out.println((failures == 0) ? "Done." : failures + " check(s) failed.");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Merge three hand-written runs that share some sequences
+     * @return number of failed checks
+     * @throws IOException if a run can't be written or read
+     */
+    private static int mergeWrittenRuns() throws IOException {
+        System.out.println("Merging written runs...");
+        File runs[] = {
+            writeRun(new long[] {1, 4, 9}, new int[] {2, 1, 5}),
+            writeRun(new long[] {4, 6}, new int[] {3, 7}),
+            writeRun(new long[] {1, 4, 10}, new int[] {1, 1, 1})
+        };
+        long expectedKeys[] = {1, 4, 6, 9, 10};
+        int expectedCounts[] = {3, 5, 7, 5, 1};
+
+        int failures = 0;
+        RunMerger merger = new RunMerger(runs);
+        int i = 0;
+        while (merger.next()) {
+            if (i >= expectedKeys.length || merger.getKey() != expectedKeys[i] || merger.getCount() != expectedCounts[i]) {
+                System.out.println("FAILED: record " + i + " was " + merger.getKey() + " x" + merger.getCount());
+                failures++;
+            }
+            i++;
+        }
+        merger.close();
+        if (i != expectedKeys.length) {
+            System.out.println("FAILED: merged " + i + " sequences, expected " + expectedKeys.length);
+            failures++;
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        return failures;
+    }
+
+    /**
+     * Count random sequences in an ExternalKmerSorter with a budget small
+     * enough to spill more runs than are merged at once, and check the
+     * merged counts against counts kept in memory
+     * @return number of failed checks
+     * @throws IOException if a run can't be written or read
+     */
+    private static int mergeSpilledRuns() throws IOException {
+        System.out.println("Merging spilled runs...");
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        ExternalKmerSorter sorter = new ExternalKmerSorter(24 * 8, directory);  //8 sequences per run
+        LongIntHashMap counts = new LongIntHashMap(3000);
+        Random rand = new Random(20);
+        for (int i = 0; i < 20000; i++) {
+            long sequence = rand.nextInt(3000);
+            sorter.add(sequence);
+            counts.add(sequence, 1);
+        }
+
+        int failures = 0;
+        RunMerger merger = sorter.merge();
+        System.out.println("Runs left for the final merge: " + sorter.getRuns());
+        long previous = -1;
+        int merged = 0;
+        while (merger.next()) {
+            if (merger.getKey() <= previous) {
+                System.out.println("FAILED: " + merger.getKey() + " came after " + previous);
+                failures++;
+            }
+            if (merger.getCount() != counts.get(merger.getKey(), 0)) {
+                System.out.println("FAILED: " + merger.getKey() + " counted " + merger.getCount()
+                        + " times, expected " + counts.get(merger.getKey(), 0));
+                failures++;
+            }
+            previous = merger.getKey();
+            merged++;
+        }
+        merger.close();
+        sorter.delete();
+        if (merged != counts.size()) {
+            System.out.println("FAILED: merged " + merged + " sequences, expected " + counts.size());
+            failures++;
+        }
+        return failures;
+    }
+
+    /**
+     * Write a run file in the format ExternalKmerSorter spills
+     * @param keys --sorted sequences (long[])
+     * @param counts --count of each sequence (int[])
+     * @return the run file
+     * @throws IOException if the run can't be written
+     */
+    private static File writeRun(long keys[], int counts[]) throws IOException {
+        File run = File.createTempFile("runTest", ".run");
+        run.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (int i = 0; i < keys.length; i++) {
+                out.writeLong(keys[i]);
+                out.writeInt(counts[i]);
+            }
+        }
+        return run;
+    }
+
+}
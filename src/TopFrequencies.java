@@ -0,0 +1,230 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps the n most frequent keys of a stream of (key, frequency) pairs in a
+ * bounded min-heap held in primitive arrays. The root of the heap is the
+ * least frequent key kept, so a key that doesn't beat it is dropped after one
+ * comparison, and one that does replaces it in O(log n). Keys with the same
+ * frequency are ordered smallest first, so the result doesn't depend on the
+ * order the keys arrive in.
+ *
+ * A finished result can be written to a small index file, most frequent
+ * first, so later queries for up to that many keys don't need to scan the BTree.
+ */
+public class TopFrequencies implements KeyVisitor {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int n; //number of keys to keep
+    private long keys[]; //heap of keys kept, worst at 0 until sorted
+    private int frequencies[]; //frequency of each key kept
+    private int size; //number of keys kept so far
+    private boolean sorted; //true once the heap has been sorted, most frequent first
+
+    /**
+     * Constructor
+     * @param n --number of keys to keep (int)
+     */
+    public TopFrequencies(int n) {
+        this.n = n;
+        int capacity = Math.min(n, INITIAL_CAPACITY);
+        keys = new long[capacity];
+        frequencies = new int[capacity];
+    }
+
+    /**
+     * Offer a key, keeping it if it is among the n most frequent seen so far
+     * @param sequence --key (long)
+     * @param frequency --number of times it occurred (int)
+     */
+    public void visit(long sequence, int frequency) {
+        if (sorted) {
+            throw new IllegalStateException("Keys offered after the result was sorted");
+        }
+        if (size < n) {
+            if (size == keys.length) {
+                int capacity = (int) Math.min(n, 2L * keys.length);
+                keys = Arrays.copyOf(keys, capacity);
+                frequencies = Arrays.copyOf(frequencies, capacity);
+            }
+            keys[size] = sequence;
+            frequencies[size] = frequency;
+            siftUp(size++);
+        }
+        else if (n > 0 && worse(keys[0], frequencies[0], sequence, frequency)) {
+            keys[0] = sequence;
+            frequencies[0] = frequency;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Sort the keys kept, most frequent first. No more keys can be offered afterwards.
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        //heap sort: the worst key left is moved to the end each time
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    /**
+     * @return number of keys kept
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i --rank, 0 for the most frequent (int)
+     * @return key of rank i
+     */
+    public long getKey(int i) {
+        sort();
+        return keys[i];
+    }
+
+    /**
+     * @param i --rank, 0 for the most frequent (int)
+     * @return frequency of the key of rank i
+     */
+    public int getFrequency(int i) {
+        sort();
+        return frequencies[i];
+    }
+
+    /**
+     * Write the keys kept to an index file, most frequent first.
+     * The file starts with the number of keys that were wanted and the
+     * number kept; fewer are kept only if there were fewer keys than that.
+     * @param filename --index file to write (String)
+     * @throws IOException if it can't be written
+     */
+    public void write(String filename) throws IOException {
+        sort();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        try {
+            out.writeInt(n);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(keys[i]);
+                out.writeInt(frequencies[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the n most frequent keys from an index file written by write()
+     * @param filename --index file (String)
+     * @param n --number of keys wanted (int)
+     * @return the n most frequent keys, or null if there is no index or it holds too few of them
+     * @throws IOException if the index can't be read
+     */
+    public static TopFrequencies read(String filename, int n) throws IOException {
+        if (!new File(filename).isFile()) {
+            return null;
+        }
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            int wanted = in.readInt();
+            int stored = in.readInt();
+            //an index shorter than n is enough only if it holds every key of the tree
+            if (stored < n && stored == wanted) {
+                return null;
+            }
+            TopFrequencies top = new TopFrequencies(n);
+            for (int i = 0; i < Math.min(n, stored); i++) {
+                top.visit(in.readLong(), in.readInt());
+            }
+            return top;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param a --key (long)
+     * @param fa --frequency of a (int)
+     * @param b --key (long)
+     * @param fb --frequency of b (int)
+     * @return true if a ranks below b
+     */
+    private static boolean worse(long a, int fa, long b, int fb) {
+        return fa < fb || (fa == fb && a > b);
+    }
+
+    /**
+     * Move an entry up until its parent ranks below it
+     * @param i --position in heap (int)
+     */
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(keys[i], frequencies[i], keys[parent], frequencies[parent])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    /**
+     * Move an entry down until both its children rank above it
+     * @param i --position in heap (int)
+     * @param end --number of entries in the heap (int)
+     */
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && worse(keys[child + 1], frequencies[child + 1], keys[child], frequencies[child])) {
+                child++;
+            }
+            if (!worse(keys[child], frequencies[child], keys[i], frequencies[i])) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    /**
+     * @param i (int)
+     * @param j (int)
+     */
+    private void swap(int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int frequency = frequencies[i];
+        frequencies[i] = frequencies[j];
+        frequencies[j] = frequency;
+    }
+
+}
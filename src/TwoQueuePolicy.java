@@ -0,0 +1,60 @@
+/**
+ * 2Q (Johnson and Shasha): nodes seen once wait in a small FIFO queue (A1in).
+ * Only nodes that are used again after leaving it, while their offset is still
+ * remembered in a ghost queue (A1out), are promoted to the main LRU queue (Am).
+ * A sequential scan therefore only cycles through A1in and leaves Am alone.
+ */
+public class TwoQueuePolicy implements CachePolicy {
+
+    private EntryList a1in = new EntryList(); //nodes seen once, FIFO
+    private EntryList am = new EntryList(); //nodes seen again, LRU
+    private GhostList a1out; //offsets recently evicted from a1in, oldest first
+    private int maxIn; //target size of a1in
+    private int maxOut; //number of offsets a1out remembers
+
+    /**
+     * Constructor
+     * @param size --number of nodes the cache holds (int)
+     */
+    public TwoQueuePolicy(int size) {
+        //sizes recommended by the 2Q paper: a quarter of the cache for A1in, ghosts for half
+        maxIn = Math.max(1, size / 4);
+        maxOut = Math.max(1, size / 2);
+        a1out = new GhostList(maxOut + 1);
+    }
+
+    public String getName() {
+        return "2q";
+    }
+
+    public void admit(CacheEntry entry) {
+        if (a1out.remove(entry.getOffset())) {
+            am.addFirst(entry);
+        }
+        else {
+            a1in.addFirst(entry);
+        }
+    }
+
+    public void access(CacheEntry entry) {
+        if (entry.list == am) {
+            am.moveToFront(entry);
+        }
+        //hits in a1in are correlated references and don't promote
+    }
+
+    public CacheEntry evict() {
+        if (a1in.size() > maxIn || am.size() == 0) {
+            CacheEntry victim = a1in.removeLast();
+            if (victim != null) {
+                a1out.add(victim.getOffset());
+                if (a1out.size() > maxOut) {
+                    a1out.removeOldest();
+                }
+                return victim;
+            }
+        }
+        return am.removeLast();
+    }
+
+}